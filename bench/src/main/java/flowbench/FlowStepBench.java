@@ -0,0 +1,70 @@
+package flowbench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/***
+ * Measures one timestep of the flow kernel at several grid sizes and wet-point densities, as a timestep only visits the wet points: on all the workers through FlowSim.step, and on a single thread through FlowThread.waterFlow over the whole traversal order.
+ * Each iteration runs a fixed batch of timesteps from the same starting water, so that faster code does not spread the water further and get more work.
+ * The score is the time for the whole batch.
+ * @author Rea Keebine
+ * @version 1.0.0 Oct 18, 2026
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, batchSize = FlowStepBench.BATCH)
+@Measurement(iterations = 10, batchSize = FlowStepBench.BATCH)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class FlowStepBench {
+
+    /***
+     * The number of timesteps in each iteration.
+     */
+    static final int BATCH = 50;
+
+    /***
+     * Width and height of the square grid.
+     */
+    @Param({"256", "1024", "2048"})
+    public int size;
+
+    /***
+     * The fraction of points that hold water.
+     */
+    @Param({"0.001", "0.01", "0.1", "0.5"})
+    public double wet;
+
+    private Object land, water, sim, worker;
+    private int order;
+
+    @Setup(Level.Trial)
+    public void createSimulation() {
+        land = Sim.terrain(size, size, Sim.hills(size, size, 1));
+        water = Sim.water(size, size);
+        sim = Sim.sim(land, water);
+        worker = Sim.worker(land, water);
+        order = Sim.orderLength(water);
+    }
+
+    @Setup(Level.Iteration)
+    public void wetPoints() {
+        Sim.reset(water);
+        Sim.wet(water, size, wet, 2);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopWorkers() {
+        Sim.shutdown(sim);
+    }
+
+    @Benchmark
+    public void step() {
+        Sim.step(sim);
+    }
+
+    @Benchmark
+    public void waterFlowSingleThread() {
+        Sim.waterFlow(worker, 0, order);
+    }
+}
@@ -0,0 +1,150 @@
+package flowbench;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/***
+ * Measures loading a Terrain from the data directory, for the medium sample and for a larger generated terrain: with the original Scanner loop as the baseline, with the parallel TerrainParser, and from the binary format.
+ * Before each trial the heights from TerrainParser and from the binary file are checked against the Scanner loop bit for bit, so a faster loader that changes a height fails rather than scores.
+ * The generated terrain is size x size, written as it is generated so that files of several GB can be benchmarked, e.g. with -p terrain=synthetic -p size=30000; the heap must then hold the heights.
+ * The binary and generated files are written to the data directory before the trial and deleted after it. Must be run from the top of the project.
+ * @author Rea Keebine
+ * @version 1.0.0 Oct 18, 2026
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class LoadBench {
+
+    /***
+     * medsample for data/medsample_in.txt, or synthetic for a generated terrain.
+     */
+    @Param({"medsample", "synthetic"})
+    public String terrain;
+
+    /***
+     * Width and height of the generated terrain. Not used for medsample.
+     */
+    @Param({"2048"})
+    public int size;
+
+    /***
+     * How the terrain is loaded: scanner for the original Scanner loop over the text file, text for TerrainParser, or binary.
+     */
+    @Param({"scanner", "text", "binary"})
+    public String format;
+
+    private String fileName;
+    private boolean temporary;
+
+    @Setup(Level.Trial)
+    public void writeFiles() throws IOException {
+        String text = "medsample_in.txt";
+        if (terrain.equals("synthetic")) {
+            text = "jmh_synthetic_in.txt";
+            generate(new File("data/" + text), size, size);
+        }
+        fileName = text;
+        if (!format.equals("scanner")) {
+            Object land = Sim.loadTerrain(text);
+            check(land, text, "TerrainParser");
+            if (format.equals("binary")) {
+                fileName = "jmh_" + terrain + "_in.bin";
+                Sim.saveBinary(land, fileName);
+                land = null; // let the heap go before loading the binary file
+                check(Sim.loadTerrain(fileName), text, "the binary format");
+                if (!text.equals("medsample_in.txt"))
+                    new File("data/" + text).delete();
+            }
+        }
+        temporary = !fileName.equals("medsample_in.txt");
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() {
+        if (temporary)
+            new File("data/" + fileName).delete();
+    }
+
+    /***
+     * Checks that a loaded terrain holds exactly the heights the Scanner loop reads from the text file, comparing as the file is read so that no second copy of the heights is needed.
+     * @param land the loaded terrain
+     * @param text the name of the text file in the data directory
+     * @param loader what the terrain was loaded with, for the error message
+     * @throws IOException if the text file cannot be read
+     */
+    private static void check(Object land, String text, String loader) throws IOException {
+        try (Scanner sc = new Scanner(new File("data/" + text))) {
+            int dimx = sc.nextInt();
+            int dimy = sc.nextInt();
+            if ((long) dimx*dimy != Sim.terrainDim(land))
+                throw new IllegalStateException(loader + " loaded " + Sim.terrainDim(land) + " heights from " + text + " but Scanner reads " + (long) dimx*dimy);
+            for (int x = 0; x < dimx; x++)
+                for (int y = 0; y < dimy; y++) {
+                    float expected = sc.nextFloat(), loaded = Sim.height(land, y*dimx + x);
+                    if (Float.floatToRawIntBits(expected) != Float.floatToRawIntBits(loaded))
+                        throw new IllegalStateException(loader + " gives " + loaded + " at (" + x + "," + y + ") of " + text + " but Scanner reads " + expected);
+                }
+        }
+    }
+
+    /***
+     * Loads the heights the way Terrain originally did, with Scanner.nextFloat.
+     * @param file the text file to read
+     * @return the heights in row order
+     * @throws IOException if the file cannot be read
+     */
+    private static float[] scannerLoad(File file) throws IOException {
+        try (Scanner sc = new Scanner(file)) {
+            int dimx = sc.nextInt();
+            int dimy = sc.nextInt();
+            float[] height = new float[dimx*dimy];
+            for (int x = 0; x < dimx; x++)
+                for (int y = 0; y < dimy; y++)
+                    height[y*dimx + x] = sc.nextFloat();
+            return height;
+        }
+    }
+
+    /***
+     * Writes a random-walk terrain in the text format as it is generated, with two decimal places per height like the sample data and one line per column.
+     * @param file the file to write
+     * @param dimx the x-dimension of the terrain
+     * @param dimy the y-dimension of the terrain
+     * @throws IOException if the file cannot be written
+     */
+    private static void generate(File file, int dimx, int dimy) throws IOException {
+        Random rand = new Random(42);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 20)) {
+            out.write((dimx + " " + dimy + "\n").getBytes("ISO-8859-1"));
+            long h = 50000; // height in hundredths
+            for (int x = 0; x < dimx; x++) {
+                for (int y = 0; y < dimy; y++) {
+                    h = Math.max(0, h + rand.nextInt(201) - 100);
+                    out.write(Long.toString(h / 100).getBytes("ISO-8859-1"));
+                    out.write('.');
+                    out.write('0' + (int) (h / 10 % 10));
+                    out.write('0' + (int) (h % 10));
+                    out.write(y == dimy - 1 ? '\n' : ' ');
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public Object load() throws IOException {
+        if (format.equals("scanner"))
+            return scannerLoad(new File("data/" + fileName));
+        return Sim.loadTerrain(fileName);
+    }
+}
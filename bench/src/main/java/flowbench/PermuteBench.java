@@ -0,0 +1,43 @@
+package flowbench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/***
+ * Measures deriving the tiled random traversal order from a new seed, on its own and as part of resetting the Water object.
+ * @author Rea Keebine
+ * @version 1.0.0 Oct 18, 2026
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class PermuteBench {
+
+    /***
+     * Width and height of the square grid.
+     */
+    @Param({"512", "2048"})
+    public int size;
+
+    private Object water;
+
+    @Setup(Level.Trial)
+    public void createWater() {
+        water = Sim.water(size, size);
+    }
+
+    @Benchmark
+    public Object genPermute() {
+        Sim.genPermute(water);
+        return water;
+    }
+
+    @Benchmark
+    public Object reset() {
+        Sim.reset(water);
+        return water;
+    }
+}
@@ -0,0 +1,187 @@
+package flowbench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/***
+ * Measures the water and terrain layers, headless: taking in frames of water, building the terrain mipmap for each shading, and drawing both through a window-sized viewport zoomed to fit the grid.
+ * The water layer takes in a frame in which a given number of point pairs swapped depths, which keeps the depth range and so the colour table unchanged and gives an incremental update.
+ * A full update is forced by taking two frames before it, so that a frame is skipped and every point is compared.
+ * @author Rea Keebine
+ * @version 1.0.0 Oct 18, 2026
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class RenderBench {
+
+    /***
+     * A Water object being displayed through its layer, with the pairs of points that swap depths between frames.
+     */
+    @State(Scope.Benchmark)
+    public static class Display {
+
+        /***
+         * Width and height of the square grid.
+         */
+        @Param({"512", "2048"})
+        public int size;
+
+        /***
+         * The number of point pairs that swap depths between frames.
+         */
+        @Param({"64", "4096", "65536"})
+        public int swaps;
+
+        private Object water, layer;
+        private int[] pairs;
+        private long frame;
+
+        @Setup(Level.Trial)
+        public void createWater() {
+            water = Sim.water(size, size);
+            Sim.wet(water, size, 0.3, 2);
+            layer = Sim.waterLayer(water);
+            Sim.publishFrame(water, frame++);
+            Sim.updateWater(layer);
+
+            // pick pairs of wet points with different depths
+            Random rand = new Random(3);
+            pairs = new int[2*swaps];
+            for (int p = 0; p < pairs.length; p += 2) {
+                int a, b;
+                do {
+                    a = rand.nextInt(size*size);
+                    b = rand.nextInt(size*size);
+                } while (Sim.getDepth(water, a) == 0 || Sim.getDepth(water, b) == 0 || Sim.getDepth(water, a) == Sim.getDepth(water, b));
+                pairs[p] = a;
+                pairs[p+1] = b;
+            }
+        }
+
+        /***
+         * Swaps the depths of every pair, which changes the points but not the depth statistics.
+         */
+        void swapDepths() {
+            for (int p = 0; p < pairs.length; p += 2) {
+                int da = Sim.getDepth(water, pairs[p]);
+                Sim.setDepth(water, pairs[p], Sim.getDepth(water, pairs[p+1]));
+                Sim.setDepth(water, pairs[p+1], da);
+            }
+        }
+    }
+
+    /***
+     * The heights of a terrain to shade into a mipmap.
+     */
+    @State(Scope.Benchmark)
+    public static class Heights {
+
+        /***
+         * Width and height of the square grid.
+         */
+        @Param({"512", "2048"})
+        public int size;
+
+        /***
+         * How the terrain is shaded.
+         */
+        @Param({"GREYSCALE", "HILLSHADE"})
+        public String shading;
+
+        private float[] heights;
+        private Object shade;
+
+        @Setup(Level.Trial)
+        public void createHeights() {
+            heights = Sim.hills(size, size, 1);
+            shade = Sim.shading(shading);
+        }
+    }
+
+    /***
+     * A window showing a whole terrain with water, zoomed out to fit, as the GUI draws it.
+     */
+    @State(Scope.Benchmark)
+    public static class Screen {
+
+        /***
+         * Width and height of the square grid.
+         */
+        @Param({"512", "2048"})
+        public int size;
+
+        /***
+         * The size of the window.
+         */
+        static final int WIDTH = 1280, HEIGHT = 800;
+
+        private Object water, view, landLayer, waterLayer;
+        private int[] pixels = new int[WIDTH*HEIGHT], cols = new int[WIDTH];
+        private int[] points;
+        private long frame;
+
+        @Setup(Level.Trial)
+        public void createScreen() {
+            Object land = Sim.terrain(size, size, Sim.hills(size, size, 1));
+            water = Sim.water(size, size);
+            Sim.wet(water, size, 0.01, 2);
+            view = Sim.viewport(size, size, WIDTH, HEIGHT);
+            landLayer = Sim.terrainLayer(land, Sim.shading("HILLSHADE"));
+            waterLayer = Sim.waterLayer(water);
+            Sim.publishFrame(water, frame++);
+            Sim.updateWater(waterLayer);
+
+            Random rand = new Random(4);
+            points = new int[4096];
+            for (int p = 0; p < points.length; p++)
+                points[p] = rand.nextInt(size*size);
+        }
+
+        /***
+         * Changes the depth of a fixed number of points, as a timestep would.
+         */
+        void change() {
+            for (int idx : points)
+                Sim.setDepth(water, idx, (Sim.getDepth(water, idx) + 1) % 4);
+        }
+    }
+
+    @Benchmark
+    public Object viewTerrain(Screen s) {
+        Sim.drawTerrain(s.landLayer, s.view, s.pixels, Screen.WIDTH, Screen.HEIGHT, s.cols);
+        return s.pixels;
+    }
+
+    @Benchmark
+    public Object viewWater(Screen s) {
+        s.change();
+        Sim.publishFrame(s.water, s.frame++);
+        Sim.updateWater(s.waterLayer);
+        Sim.drawWater(s.waterLayer, s.view, s.pixels, Screen.WIDTH, Screen.HEIGHT, s.cols);
+        return s.pixels;
+    }
+
+    @Benchmark
+    public Object waterIncremental(Display d) {
+        d.swapDepths();
+        Sim.publishFrame(d.water, d.frame++);
+        return Sim.updateWater(d.layer);
+    }
+
+    @Benchmark
+    public Object waterFullUpdate(Display d) {
+        d.swapDepths();
+        Sim.publishFrame(d.water, d.frame++);
+        Sim.publishFrame(d.water, d.frame++); // the renderer misses a frame
+        return Sim.updateWater(d.layer);
+    }
+
+    @Benchmark
+    public Object terrainLayer(Heights h) {
+        return Sim.terrainLayer(Sim.terrain(h.size, h.size, h.heights), h.shade);
+    }
+}
@@ -0,0 +1,390 @@
+package flowbench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Random;
+import java.util.concurrent.Phaser;
+
+/***
+ * Reaches the simulation classes for the benchmarks. The simulation lives in the default package, which cannot be imported from a named package,
+ * and JMH does not allow benchmarks in the default package, so every call goes through a method handle looked up once.
+ * The handles are static final, so the JIT inlines them like direct calls.
+ * @author Rea Keebine
+ * @version 1.0.0 Oct 18, 2026
+ */
+final class Sim {
+
+    /***
+     * Looks up the handles below. The benchmarks and the simulation share the unnamed module, so private members can be reached too.
+     */
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    // the simulation classes
+    private static final Class<?> TERRAIN = load("Terrain");
+    private static final Class<?> WATER = load("Water");
+    private static final Class<?> FLOW_SIM = load("FlowSim");
+    private static final Class<?> FLOW_THREAD = load("FlowThread");
+    private static final Class<?> TILE_SCHEDULE = load("TileSchedule");
+    private static final Class<?> SHADING = load("TerrainLayer$Shading");
+    private static final Class<?> VIEWPORT = load("Viewport");
+    private static final Class<?> TERRAIN_LAYER = load("TerrainLayer");
+    private static final Class<?> WATER_LAYER = load("WaterLayer");
+
+    // handles with the simulation classes replaced by Object, so that invokeExact can be used from here
+    private static final MethodHandle NEW_TERRAIN = constructor(TERRAIN, int.class, int.class, float[].class);
+    private static final MethodHandle LOAD_TERRAIN = constructor(TERRAIN, String.class);
+    private static final MethodHandle TERRAIN_DIM = virtual(TERRAIN, "dim", int.class);
+    private static final MethodHandle TERRAIN_HEIGHT = virtual(TERRAIN, "getHeight", float.class, int.class);
+    private static final MethodHandle SAVE_BINARY = virtual(TERRAIN, "saveBinary", void.class, String.class);
+
+    private static final MethodHandle NEW_WATER = constructor(WATER, int.class, int.class);
+    private static final MethodHandle SET_DEPTH = virtual(WATER, "setDepth", void.class, int.class, int.class);
+    private static final MethodHandle GET_DEPTH = virtual(WATER, "getDepth", int.class, int.class);
+    private static final MethodHandle RESET = virtual(WATER, "reset", void.class);
+    private static final MethodHandle GEN_PERMUTE = hidden(WATER, "genPermute", void.class);
+    private static final MethodHandle PUBLISH_FRAME = virtual(WATER, "publishFrame", void.class, long.class);
+
+    private static final MethodHandle NEW_SIM = constructor(FLOW_SIM, TERRAIN, WATER);
+    private static final MethodHandle STEP = virtual(FLOW_SIM, "step", void.class);
+    private static final MethodHandle SHUTDOWN = virtual(FLOW_SIM, "shutdown", void.class);
+
+    private static final MethodHandle TILE_COUNT = virtual(WATER, "getTileCount", int.class);
+    private static final MethodHandle TILE_END = virtual(WATER, "getTileEnd", int.class, int.class);
+    private static final MethodHandle NEW_SCHEDULE = constructor(TILE_SCHEDULE, WATER, boolean.class);
+    private static final MethodHandle NEW_THREAD = constructor(FLOW_THREAD, TERRAIN, WATER, Phaser.class, TILE_SCHEDULE);
+    private static final MethodHandle WATER_FLOW = virtual(FLOW_THREAD, "waterFlow", void.class, int.class, int.class);
+
+    private static final MethodHandle NEW_VIEWPORT = constructor(VIEWPORT, int.class, int.class);
+    private static final MethodHandle VIEW_FIT = virtual(VIEWPORT, "fit", void.class, int.class, int.class);
+    private static final MethodHandle NEW_TERRAIN_LAYER = constructor(TERRAIN_LAYER, TERRAIN, SHADING);
+    private static final MethodHandle TERRAIN_LAYER_DRAW = virtual(TERRAIN_LAYER, "draw", void.class, VIEWPORT, int[].class, int.class, int.class, int[].class);
+    private static final MethodHandle NEW_WATER_LAYER = constructor(WATER_LAYER, WATER);
+    private static final MethodHandle WATER_LAYER_UPDATE = virtual(WATER_LAYER, "update", boolean.class);
+    private static final MethodHandle WATER_LAYER_DRAW = virtual(WATER_LAYER, "draw", void.class, VIEWPORT, int[].class, int.class, int.class, int[].class);
+
+    /***
+     * The radius of the puddles laid by wet.
+     */
+    private static final int PUDDLE = 8;
+
+    private Sim() {
+    }
+
+    /***
+     * Finds a class of the simulation.
+     * @param name the class name in the default package
+     * @return the class
+     */
+    private static Class<?> load(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("simulation class " + name + " is missing from the benchmark jar", e);
+        }
+    }
+
+    /***
+     * Looks up a constructor, adapted to return Object.
+     */
+    private static MethodHandle constructor(Class<?> c, Class<?>... params) {
+        try {
+            MethodHandle h = LOOKUP.findConstructor(c, MethodType.methodType(void.class, params));
+            return h.asType(erase(h.type()));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /***
+     * Looks up a public instance method, adapted to take and return Object in place of simulation classes.
+     */
+    private static MethodHandle virtual(Class<?> c, String name, Class<?> ret, Class<?>... params) {
+        try {
+            MethodHandle h = LOOKUP.findVirtual(c, name, MethodType.methodType(ret, params));
+            return h.asType(erase(h.type()));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /***
+     * Looks up a private instance method, which is allowed as the simulation and the benchmarks share the unnamed module.
+     */
+    private static MethodHandle hidden(Class<?> c, String name, Class<?> ret, Class<?>... params) {
+        try {
+            MethodHandle h = MethodHandles.privateLookupIn(c, LOOKUP).findVirtual(c, name, MethodType.methodType(ret, params));
+            return h.asType(erase(h.type()));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /***
+     * Replaces the simulation classes in a method type with Object.
+     */
+    private static MethodType erase(MethodType t) {
+        for (int i = 0; i < t.parameterCount(); i++)
+            if (isSimulation(t.parameterType(i)))
+                t = t.changeParameterType(i, Object.class);
+        return isSimulation(t.returnType()) ? t.changeReturnType(Object.class) : t;
+    }
+
+    private static boolean isSimulation(Class<?> c) {
+        return c == TERRAIN || c == WATER || c == FLOW_SIM || c == FLOW_THREAD || c == TILE_SCHEDULE || c == SHADING
+            || c == VIEWPORT || c == TERRAIN_LAYER || c == WATER_LAYER;
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException)
+            return (RuntimeException) t;
+        if (t instanceof Error)
+            throw (Error) t;
+        return new IllegalStateException(t);
+    }
+
+    /***
+     * Generates rolling hills with some roughness, in the same height range as the sample terrains.
+     * @param dimx x-dimension of the terrain
+     * @param dimy y-dimension of the terrain
+     * @param seed seed for the roughness
+     * @return the heights in row order
+     */
+    static float[] hills(int dimx, int dimy, long seed) {
+        Random rand = new Random(seed);
+        float[] height = new float[dimx*dimy];
+        for (int y = 0, idx = 0; y < dimy; y++)
+            for (int x = 0; x < dimx; x++, idx++)
+                height[idx] = 0.3f + 0.1f*(float) (Math.sin(x*0.021) + Math.cos(y*0.017) + 0.5*Math.sin((x + y)*0.051))
+                            + 0.005f*rand.nextFloat();
+        return height;
+    }
+
+    static Object terrain(int dimx, int dimy, float[] heights) {
+        try {
+            return (Object) NEW_TERRAIN.invokeExact(dimx, dimy, heights);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /***
+     * Loads a terrain from the data directory, failing if it could not be read. Terrain only prints a message when loading fails.
+     */
+    static Object loadTerrain(String fileName) {
+        try {
+            Object land = (Object) LOAD_TERRAIN.invokeExact(fileName);
+            if ((int) TERRAIN_DIM.invokeExact(land) == 0)
+                throw new IllegalStateException("could not load data/" + fileName + ", run the benchmarks from the top of the project");
+            return land;
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static int terrainDim(Object land) {
+        try {
+            return (int) TERRAIN_DIM.invokeExact(land);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static float height(Object land, int idx) {
+        try {
+            return (float) TERRAIN_HEIGHT.invokeExact(land, idx);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object shading(String name) {
+        return Enum.valueOf(SHADING.asSubclass(Enum.class), name);
+    }
+
+    static void saveBinary(Object land, String fileName) {
+        try {
+            SAVE_BINARY.invokeExact(land, fileName);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object water(int dimx, int dimy) {
+        try {
+            return (Object) NEW_WATER.invokeExact(dimx, dimy);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void setDepth(Object water, int idx, int d) {
+        try {
+            SET_DEPTH.invokeExact(water, idx, d);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static int getDepth(Object water, int idx) {
+        try {
+            return (int) GET_DEPTH.invokeExact(water, idx);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void reset(Object water) {
+        try {
+            RESET.invokeExact(water);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void genPermute(Object water) {
+        try {
+            GEN_PERMUTE.invokeExact(water);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void publishFrame(Object water, long step) {
+        try {
+            PUBLISH_FRAME.invokeExact(water, step);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /***
+     * Creates a view of a grid fitted to a window.
+     */
+    static Object viewport(int dimx, int dimy, int width, int height) {
+        try {
+            Object view = (Object) NEW_VIEWPORT.invokeExact(dimx, dimy);
+            VIEW_FIT.invokeExact(view, width, height);
+            return view;
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object terrainLayer(Object land, Object shading) {
+        try {
+            return (Object) NEW_TERRAIN_LAYER.invokeExact(land, shading);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void drawTerrain(Object layer, Object view, int[] pixels, int width, int height, int[] cols) {
+        try {
+            TERRAIN_LAYER_DRAW.invokeExact(layer, view, pixels, width, height, cols);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object waterLayer(Object water) {
+        try {
+            return (Object) NEW_WATER_LAYER.invokeExact(water);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static boolean updateWater(Object layer) {
+        try {
+            return (boolean) WATER_LAYER_UPDATE.invokeExact(layer);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void drawWater(Object layer, Object view, int[] pixels, int width, int height, int[] cols) {
+        try {
+            WATER_LAYER_DRAW.invokeExact(layer, view, pixels, width, height, cols);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object sim(Object land, Object water) {
+        try {
+            return (Object) NEW_SIM.invokeExact(land, water);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void step(Object sim) {
+        try {
+            STEP.invokeExact(sim);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void shutdown(Object sim) {
+        try {
+            SHUTDOWN.invokeExact(sim);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /***
+     * Creates a worker that is never started, so that its waterFlow can be called on the benchmark thread.
+     */
+    static Object worker(Object land, Object water) {
+        try {
+            Object schedule = (Object) NEW_SCHEDULE.invokeExact(water, false);
+            return (Object) NEW_THREAD.invokeExact(land, water, new Phaser(), schedule);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /***
+     * Gets the length of the traversal order, which is a little longer than the grid when the edge tiles are not full.
+     */
+    static int orderLength(Object water) {
+        try {
+            int tiles = (int) TILE_COUNT.invokeExact(water);
+            return (int) TILE_END.invokeExact(water, tiles - 1);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static void waterFlow(Object worker, int start, int end) {
+        try {
+            WATER_FLOW.invokeExact(worker, start, end);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /***
+     * Wets a fraction of the points with puddles of random depths around random centres, as left behind by water sources.
+     * @param water the Water object to wet, which should be dry
+     * @param dim the width and height of the square grid
+     * @param fraction the fraction of points to wet
+     * @param seed seed for choosing the puddles and depths
+     */
+    static void wet(Object water, int dim, double fraction, long seed) {
+        Random rand = new Random(seed);
+        long target = (long) (fraction*dim*dim);
+        for (long count = 0; count < target; ) {
+            int cx = rand.nextInt(dim), cy = rand.nextInt(dim);
+            for (int y = Math.max(0, cy - PUDDLE); y <= Math.min(dim - 1, cy + PUDDLE); y++)
+                for (int x = Math.max(0, cx - PUDDLE); x <= Math.min(dim - 1, cx + PUDDLE); x++)
+                    if ((x-cx)*(x-cx) + (y-cy)*(y-cy) <= PUDDLE*PUDDLE && getDepth(water, y*dim + x) == 0 && count < target) {
+                        setDepth(water, y*dim + x, 1 + rand.nextInt(20));
+                        count++;
+                    }
+        }
+    }
+}
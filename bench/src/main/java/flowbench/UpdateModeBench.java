@@ -0,0 +1,77 @@
+package flowbench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/***
+ * Compares the two ways a timestep can move water, through FlowSim.step on all the workers: in place in the traversal order, and synchronously with FlowPlan, where every point decides from the depths at the start of the timestep and the moves are gathered in a second pass.
+ * Like FlowStepBench, each iteration runs a fixed batch of timesteps from the same starting water and the score is the time for the whole batch.
+ * Each is run with the scalar search for the lowest neighbour and with the surfaces of each tile computed by VectorFlow, which only synchronous timesteps use.
+ * @author Rea Keebine
+ * @version 1.0.0 Oct 18, 2026
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, batchSize = UpdateModeBench.BATCH)
+@Measurement(iterations = 10, batchSize = UpdateModeBench.BATCH)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true", "--add-modules=jdk.incubator.vector"})
+public class UpdateModeBench {
+
+    /***
+     * The number of timesteps in each iteration.
+     */
+    static final int BATCH = 50;
+
+    /***
+     * Width and height of the square grid.
+     */
+    @Param({"256", "1024", "2048"})
+    public int size;
+
+    /***
+     * The fraction of points that hold water.
+     */
+    @Param({"0.001", "0.01", "0.1", "0.5"})
+    public double wet;
+
+    /***
+     * How water is moved, inplace or synchronous.
+     */
+    @Param({"inplace", "synchronous"})
+    public String mode;
+
+    /***
+     * How the lowest neighbour is found, scalar or simd.
+     */
+    @Param({"scalar", "simd"})
+    public String kernel;
+
+    private Object water, sim;
+
+    @Setup(Level.Trial)
+    public void createSimulation() {
+        System.setProperty("flow.synchronous", String.valueOf(mode.equals("synchronous"))); // read when the simulation is created
+        System.setProperty("flow.simd", String.valueOf(kernel.equals("simd"))); // read when the workers are created
+
+        Object land = Sim.terrain(size, size, Sim.hills(size, size, 1));
+        water = Sim.water(size, size);
+        sim = Sim.sim(land, water);
+    }
+
+    @Setup(Level.Iteration)
+    public void wetPoints() {
+        Sim.reset(water);
+        Sim.wet(water, size, wet, 2);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopWorkers() {
+        Sim.shutdown(sim);
+    }
+
+    @Benchmark
+    public void step() {
+        Sim.step(sim);
+    }
+}
@@ -0,0 +1,42 @@
+#!/bin/bash
+# Checks that water poured again down a long channel is not taken as steady while it is still flowing
+# Pours three times in synchronous mode, stopping at each steady state, then runs on from the last one: all the water must already be in the basin, where it may slosh, and none may change outside it
+# Rea Keebine
+# 18 October 2026
+
+TERRAIN=steadycheck_in.txt
+TMP=$(mktemp -d)
+trap 'rm -rf "$TMP" data/$TERRAIN' EXIT
+
+# a channel 8 points wide and 1150 long sloping down into a closed basin, walled in so that no water drains off
+awk 'BEGIN {
+    dimx = 32; dimy = 1200
+    print dimx, dimy
+    for (x = 0; x < dimx; x++)
+        for (y = 0; y < dimy; y++) {
+            if (x < 12 || x >= 20 || y < 4 || y >= dimy - 4) h = 500
+            else if (y < 1150) h = 100 - 0.08*(y - 4)
+            else h = 0
+            printf "%g ", h
+        }
+    print ""
+}' > data/$TERRAIN
+
+echo pouring three times...
+java -cp bin FlowBatch $TERRAIN 20000 -source 16,10 -mode synchronous -steady 200 -rounds 3 -checkpoint $TMP/steady.ckpt -out $TMP/steady.txt | grep -E "Steady|Timesteps|mass"
+echo running on from the last steady state...
+java -cp bin FlowBatch $TERRAIN 3000 -restore $TMP/steady.ckpt -out $TMP/after.txt | grep -E "Restored|mass"
+# the water left above the basin, which is at rows 1150 and below
+above() {
+    awk 'NR == 2 { for (i = 1; i <= NF; i++) if ((i - 1) % 1200 < 1150) n += $i } END { print n + 0 }' $1
+}
+outside() {
+    awk 'FNR == 2 { for (i = 1; i <= NF; i++) if ((i - 1) % 1200 < 1150) { if (FILENAME == ARGV[1]) a[i] = $i; else if (a[i] != $i) n++ } } END { print n + 0 }' $1 $2
+}
+echo water above the basin: $(above $TMP/steady.txt) when steady, $(above $TMP/after.txt) after, $(outside $TMP/steady.txt $TMP/after.txt) points changed
+if [ $(above $TMP/steady.txt) -eq 0 ] && [ $(outside $TMP/steady.txt $TMP/after.txt) -eq 0 ]; then
+    echo PASS: the water had stopped flowing when it was taken as steady
+else
+    echo FAIL: the water was still flowing when it was taken as steady
+    exit 1
+fi
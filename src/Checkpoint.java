@@ -0,0 +1,272 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/***
+ * The state of a simulation at a timestep boundary, which is everything needed to carry on from that timestep: the depths, the timestep count, the seed of the traversal order and the mass counters.
+ * Checkpoint files are the magic bytes, a version, the dimensions, the counters and a flags word as little-endian numbers, then the depths as little-endian ints in row order (y*dimx + x).
+ * Files whose names end in .gz are compressed with GZIP, which shrinks the mostly dry depth grid a lot.
+ * @author Rea Keebine
+ * @version 1.0.0 Oct 18, 2026
+ */
+public class Checkpoint {
+
+    /***
+     * The first bytes of a checkpoint file.
+     */
+    private static final byte[] MAGIC = {'F', 'L', 'C', 'K'};
+
+    /***
+     * The version of the file layout, increased whenever it changes.
+     */
+    private static final int VERSION = 1;
+
+    /***
+     * The size of the header in bytes: the magic bytes, the version, dimx, dimy, four longs and the flags.
+     */
+    private static final int HEADER = MAGIC.length + 12 + 32 + 4;
+
+    /***
+     * The flag set when the run used deterministic timesteps.
+     */
+    private static final int DETERMINISTIC = 1;
+
+    /***
+     * The flag set when the run used synchronous timesteps.
+     */
+    private static final int SYNCHRONOUS = 2;
+
+    /***
+     * The number of depths buffered at a time when reading or writing.
+     */
+    private static final int CHUNK = 1 << 20;
+
+    /***
+     * The depth grid, in the same row order as Water.
+     */
+    private int[] depth;
+
+    /***
+     * Dimensions of the depth grid.
+     */
+    private int dimx, dimy;
+
+    /***
+     * The number of timesteps run when the checkpoint was taken.
+     */
+    private long step;
+
+    /***
+     * The seed the traversal order was derived from.
+     */
+    private long seed;
+
+    /***
+     * The total amount of water added by sources and emptied at the edges.
+     */
+    private long injected, drained;
+
+    /***
+     * Whether the run used deterministic timesteps.
+     */
+    private boolean deterministic;
+
+    /***
+     * Whether the run used synchronous timesteps.
+     */
+    private boolean synchronous;
+
+    /***
+     * Creates an empty checkpoint for a grid of the given size.
+     * @param dX x-dimension of the grid
+     * @param dY y-dimension of the grid
+     */
+    public Checkpoint(int dX, int dY) {
+        dimx = dX;
+        dimy = dY;
+        depth = new int[dX*dY];
+    }
+
+    /***
+     * Copies the state of a Water object into the checkpoint. Must be called between timesteps.
+     * @param water the water to copy
+     * @param timestep the number of timesteps run
+     * @param phased whether the run uses deterministic timesteps
+     * @param sync whether the run uses synchronous timesteps
+     */
+    void capture(Water water, long timestep, boolean phased, boolean sync) {
+        water.copyDepths(depth);
+        step = timestep;
+        seed = water.getSeed();
+        injected = water.getInjected();
+        drained = water.getDrained();
+        deterministic = phased;
+        synchronous = sync;
+    }
+
+    /***
+     * Puts the depths, traversal order and mass counters of the checkpoint back into a Water object.
+     * @param water the water to restore, with the same dimensions as the checkpoint
+     */
+    void apply(Water water) {
+        if (water.getDimX() != dimx || water.getDimY() != dimy)
+            throw new IllegalArgumentException("checkpoint is " + dimx + "x" + dimy + " but the water is " + water.getDimX() + "x" + water.getDimY());
+        water.restore(depth, seed, injected, drained);
+    }
+
+    /***
+     * Gets the number of timesteps run when the checkpoint was taken.
+     * @return the timestep count
+     */
+    public long getStep() {
+        return step;
+    }
+
+    /***
+     * Gets the seed of the traversal order when the checkpoint was taken.
+     * @return the seed
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /***
+     * Checks whether the run used deterministic timesteps, which it must carry on with to resume exactly.
+     * @return true if timesteps were run in checkerboard phases
+     */
+    public boolean isDeterministic() {
+        return deterministic;
+    }
+
+    /***
+     * Checks whether the run used synchronous timesteps, which it must carry on with to resume exactly.
+     * @return true if every point moved its water as if none had moved yet
+     */
+    public boolean isSynchronous() {
+        return synchronous;
+    }
+
+    /***
+     * Writes the checkpoint to a file. It is written to a temporary file first and then moved into place, so a crash while writing leaves the previous checkpoint intact.
+     * @param file the file to write, compressed if its name ends in .gz
+     * @throws IOException if the file cannot be written
+     */
+    public void write(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             WritableByteChannel out = isCompressed(file) ? Channels.newChannel(new GZIPOutputStream(Channels.newOutputStream(ch), 1 << 16)) : ch) {
+            ByteBuffer buf = ByteBuffer.allocate(4*Math.max(HEADER/4, Math.min(CHUNK, depth.length))).order(ByteOrder.LITTLE_ENDIAN);
+            buf.put(MAGIC).putInt(VERSION).putInt(dimx).putInt(dimy)
+               .putLong(step).putLong(seed).putLong(injected).putLong(drained)
+               .putInt((deterministic ? DETERMINISTIC : 0) | (synchronous ? SYNCHRONOUS : 0)).flip();
+            writeFully(out, buf);
+
+            for (int pos = 0; pos < depth.length; pos += CHUNK) {
+                int count = Math.min(CHUNK, depth.length - pos);
+                buf.clear();
+                buf.asIntBuffer().put(depth, pos, count);
+                buf.limit(4*count);
+                writeFully(out, buf);
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /***
+     * Reads a checkpoint from a file written by write.
+     * @param file the file to read, which is decompressed if it starts with the GZIP magic bytes
+     * @return the checkpoint
+     * @throws IOException if the file cannot be read or is not a checkpoint
+     */
+    public static Checkpoint read(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ);
+             ReadableByteChannel in = startsWithGzip(ch) ? Channels.newChannel(new GZIPInputStream(Channels.newInputStream(ch), 1 << 16)) : ch) {
+            ByteBuffer buf = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(in, buf);
+            byte[] magic = new byte[MAGIC.length];
+            buf.get(magic);
+            if (!java.util.Arrays.equals(magic, MAGIC))
+                throw new IOException("not a checkpoint file");
+            int version = buf.getInt();
+            if (version != VERSION)
+                throw new IOException("unsupported checkpoint version " + version);
+            int dX = buf.getInt(), dY = buf.getInt();
+            if (dX <= 0 || dY <= 0 || (long) dX*dY > Integer.MAX_VALUE)
+                throw new IOException("bad checkpoint dimensions " + dX + "x" + dY);
+
+            Checkpoint cp = new Checkpoint(dX, dY);
+            cp.step = buf.getLong();
+            cp.seed = buf.getLong();
+            cp.injected = buf.getLong();
+            cp.drained = buf.getLong();
+            int flags = buf.getInt();
+            cp.deterministic = (flags & DETERMINISTIC) != 0;
+            cp.synchronous = (flags & SYNCHRONOUS) != 0;
+
+            buf = ByteBuffer.allocate(4*Math.min(CHUNK, cp.depth.length)).order(ByteOrder.LITTLE_ENDIAN);
+            for (int pos = 0; pos < cp.depth.length; pos += CHUNK) {
+                int count = Math.min(CHUNK, cp.depth.length - pos);
+                buf.clear();
+                buf.limit(4*count);
+                readFully(in, buf);
+                buf.asIntBuffer().get(cp.depth, pos, count);
+            }
+            return cp;
+        }
+    }
+
+    /***
+     * Checks whether a checkpoint file should be compressed, from its name.
+     * @param file the file to check
+     * @return true if the file name ends in .gz
+     */
+    private static boolean isCompressed(Path file) {
+        return file.getFileName().toString().endsWith(".gz");
+    }
+
+    /***
+     * Checks whether a file starts with the GZIP magic bytes, leaving the channel at the start of the file.
+     * @param ch the file to check
+     * @return true if the file is compressed
+     * @throws IOException if the file cannot be read
+     */
+    private static boolean startsWithGzip(FileChannel ch) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(2);
+        ch.read(magic, 0);
+        return magic.position() == 2 && (magic.get(0) & 0xFF) == 0x1F && (magic.get(1) & 0xFF) == 0x8B;
+    }
+
+    /***
+     * Writes all the remaining bytes of a buffer.
+     * @param out the channel to write to
+     * @param buf the bytes to write
+     * @throws IOException if the bytes cannot be written
+     */
+    private static void writeFully(WritableByteChannel out, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining())
+            out.write(buf);
+    }
+
+    /***
+     * Fills the remaining space of a buffer and flips it for reading.
+     * @param in the channel to read from
+     * @param buf the buffer to fill
+     * @throws IOException if the file ends too soon
+     */
+    private static void readFully(ReadableByteChannel in, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining())
+            if (in.read(buf) < 0)
+                throw new IOException("truncated checkpoint file");
+        buf.flip();
+    }
+}
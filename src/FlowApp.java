@@ -5,8 +5,11 @@ import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
+import java.awt.event.MouseWheelEvent;
 import java.awt.BorderLayout;
 import java.awt.Dimension;
+import java.awt.GraphicsEnvironment;
+import java.awt.Rectangle;
 import java.awt.Color;
 import java.awt.Font;
 
@@ -38,8 +41,10 @@ public class FlowApp {
 		// landscape information from file supplied as argument
 		landdata = new Terrain(args[0]);
 		
-		frameX = landdata.getDimX();
-		frameY = landdata.getDimY();
+		// as big as the grid, but no bigger than the screen leaves room for, with space for the buttons below
+		Rectangle screen = GraphicsEnvironment.getLocalGraphicsEnvironment().getMaximumWindowBounds();
+		frameX = Math.min(landdata.getDimX(), screen.width);
+		frameY = Math.min(landdata.getDimY(), screen.height - 80);
 		SwingUtilities.invokeLater(()->setupGUI(frameX, frameY, landdata));
 	}
 
@@ -62,31 +67,50 @@ public class FlowApp {
 		b.setPreferredSize(new Dimension(frameX, 50));
 
 		TimeText timeT = new TimeText();
-		FlowPanel flowP = new FlowPanel(landdata, new Water(frameX,frameY));
+		FlowPanel flowP = new FlowPanel(landdata, new Water(landdata.getDimX(), landdata.getDimY()));
 		flowC = new FlowCtrl(flowP, timeT);
 
 		flowP.setPreferredSize(new Dimension(frameX,frameY));
 		timeT.setBorder(BorderFactory.createLineBorder(Color.black));
-		timeT.setText("Time: 0");
-		timeT.setMinimumSize(new Dimension(50, 25));
-		timeT.setPreferredSize(new Dimension(90, 25));
-		timeT.setMaximumSize(new Dimension(150, 25));
+		timeT.showTime();
+		timeT.setMinimumSize(new Dimension(50, 40));
+		timeT.setPreferredSize(new Dimension(170, 40));
+		timeT.setMaximumSize(new Dimension(250, 40));
 		timeT.setLineWrap(true);
 		timeT.setFont(timeT.getFont().deriveFont(Font.BOLD));
 
 		// to do: add a MouseListener, buttons and ActionListeners on those buttons
-		flowP.addMouseListener(new MouseAdapter() {
+		// the left button adds water, dragging with the right or middle button pans and the wheel zooms
+		MouseAdapter mouse = new MouseAdapter() {
+			private int lastX, lastY;
+
+			public void mousePressed(MouseEvent e) {
+				lastX = e.getX();
+				lastY = e.getY();
+			}
+
 			public void mouseClicked(MouseEvent e) {
-				flowC.makeSource(e.getX(), e.getY());
+				if (SwingUtilities.isLeftMouseButton(e))
+					flowC.makeSource(e.getX(), e.getY());
 			}
-		});
 
-		// extension: allows the user to click and drag to create multiple water sources
-		flowP.addMouseMotionListener(new MouseAdapter() {
+			// extension: allows the user to click and drag to create multiple water sources
 			public void mouseDragged(MouseEvent e) {
-				flowC.makeSource(e.getX(), e.getY());
+				if (SwingUtilities.isLeftMouseButton(e))
+					flowC.makeSource(e.getX(), e.getY());
+				else
+					flowP.pan(e.getX() - lastX, e.getY() - lastY);
+				lastX = e.getX();
+				lastY = e.getY();
 			}
-		});
+
+			public void mouseWheelMoved(MouseWheelEvent e) {
+				flowP.zoom(Math.pow(1.25, -e.getPreciseWheelRotation()), e.getX(), e.getY());
+			}
+		};
+		flowP.addMouseListener(mouse);
+		flowP.addMouseMotionListener(mouse);
+		flowP.addMouseWheelListener(mouse);
 
 		JButton resetB = new JButton("Reset");
 		resetB.addActionListener(new ActionListener() {
@@ -111,6 +135,33 @@ public class FlowApp {
 			}
 		});
 
+		// turbo runs as many timesteps between frames as fit in a frame time
+		JCheckBox turboC = new JCheckBox("Turbo");
+		turboC.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				flowC.setTurbo(turboC.isSelected());
+			}
+		});
+
+		// runs to the timestep typed in without drawing the timesteps on the way
+		JTextField untilT = new JTextField(6);
+		untilT.setMaximumSize(untilT.getPreferredSize());
+		JButton untilB = new JButton("Run to");
+		untilB.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				long step;
+				try {
+					step = Long.parseLong(untilT.getText().trim());
+				} catch (NumberFormatException ex) {
+					untilT.selectAll();
+					return;
+				}
+				flowC.runUntil(step);
+				Thread flowCt = new Thread(flowC);
+				flowCt.start();
+			}
+		});
+
 		JButton endB = new JButton("End");
 		endB.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
@@ -119,6 +170,21 @@ public class FlowApp {
 			}
 		});
 
+		JButton fitB = new JButton("Fit");
+		fitB.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				flowP.fitView();
+			}
+		});
+
+		JComboBox<String> shadeC = new JComboBox<String>(new String[]{"Greyscale", "Hillshade"});
+		shadeC.setMaximumSize(shadeC.getPreferredSize());
+		shadeC.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				flowP.setShading(TerrainLayer.Shading.values()[shadeC.getSelectedIndex()]);
+			}
+		});
+
 		b.add(Box.createRigidArea(new Dimension(15,0)));
 		b.add(resetB);
 		b.add(Box.createHorizontalGlue());
@@ -126,8 +192,17 @@ public class FlowApp {
 		b.add(Box.createHorizontalGlue());
 		b.add(playB);
 		b.add(Box.createHorizontalGlue());
+		b.add(turboC);
+		b.add(Box.createHorizontalGlue());
+		b.add(untilT);
+		b.add(untilB);
+		b.add(Box.createHorizontalGlue());
 		b.add(endB);
 		b.add(Box.createHorizontalGlue());
+		b.add(fitB);
+		b.add(Box.createHorizontalGlue());
+		b.add(shadeC);
+		b.add(Box.createHorizontalGlue());
 		b.add(timeT);
 		b.add(Box.createRigidArea(new Dimension(15,0)));
 		g.add(flowP);
@@ -0,0 +1,251 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Scanner;
+
+/***
+ * Runs the water flow simulation without a GUI for a fixed number of timesteps, or until the water is steady, and reports its throughput.
+ * With -rounds, the sources are poured again each time the water becomes steady, until it has become steady that many times.
+ * @author Rea Keebine
+ * @version 1.0.0 Oct 18, 2026
+ */
+public class FlowBatch {
+
+    /***
+     * The command-line usage of the batch mode.
+     */
+    private static final String USAGE = "Usage: java FlowBatch inputfilename steps [-source x,y]... [-sources sourcefile] [-out outputfile] [-threads n] [-seed n] [-restore checkpointfile] [-checkpoint checkpointfile] [-every steps] [-steady window] [-rounds n] [-mode inplace|synchronous] [-waterfile depthfile]";
+
+    /***
+     * Loads the terrain, adds the water sources, runs the timesteps and prints the results.
+     * @param args command-line arguments: the terrain file name, the number of timesteps and the options
+     */
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+
+        // check that number of command line arguments is correct
+        if (args.length < 2 || args.length % 2 != 0) {
+            System.out.println(USAGE);
+            System.exit(0);
+        }
+
+        String terrainFile = args[0];
+        int numSteps = Integer.parseInt(args[1]);
+        ArrayList<int[]> sources = new ArrayList<int[]>();
+        String outFile = null;
+        int threads = 0;
+        Long seed = null;
+        Path restoreFile = null, checkpointFile = null, waterFile = null;
+        long every = 0, steadyWindow = 0;
+        int rounds = 1;
+        boolean synchronous = false;
+        try {
+            for (int i = 2; i < args.length; i += 2) {
+                switch (args[i]) {
+                    case "-source":
+                        sources.add(parseSource(args[i+1].replace(',', ' ')));
+                        break;
+                    case "-sources":
+                        readSources(args[i+1], sources);
+                        break;
+                    case "-out":
+                        outFile = args[i+1];
+                        break;
+                    case "-threads":
+                        threads = Integer.parseInt(args[i+1]);
+                        break;
+                    case "-seed":
+                        seed = Long.parseLong(args[i+1]);
+                        break;
+                    case "-restore":
+                        restoreFile = Paths.get(args[i+1]);
+                        break;
+                    case "-checkpoint":
+                        checkpointFile = Paths.get(args[i+1]);
+                        break;
+                    case "-every":
+                        every = Long.parseLong(args[i+1]);
+                        break;
+                    case "-steady":
+                        steadyWindow = Long.parseLong(args[i+1]);
+                        break;
+                    case "-rounds":
+                        rounds = Integer.parseInt(args[i+1]);
+                        break;
+                    case "-waterfile":
+                        waterFile = Paths.get(args[i+1]);
+                        break;
+                    case "-mode":
+                        if (!args[i+1].equals("inplace") && !args[i+1].equals("synchronous")) {
+                            System.out.println(USAGE);
+                            System.exit(0);
+                        }
+                        synchronous = args[i+1].equals("synchronous");
+                        break;
+                    default:
+                        System.out.println(USAGE);
+                        System.exit(0);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            System.out.println("Unable to open source file " + e.getMessage());
+            System.exit(1);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Malformed water source: " + e.getMessage());
+            System.exit(1);
+        }
+
+        Terrain land = new Terrain(terrainFile);
+        if (land.getDimX() == 0 || land.getDimY() == 0) {
+            System.out.println("No terrain was loaded from data/" + terrainFile.trim() + ", so there is nothing to simulate");
+            System.exit(1); // the reason has already been printed
+        }
+        Water rivers = null;
+        if (waterFile == null)
+            rivers = new Water(land.getDimX(), land.getDimY());
+        else { // off the heap, for other processes to read while it runs
+            try {
+                rivers = new Water(land.getDimX(), land.getDimY(), Water.DEFAULT_TILE_SIZE, waterFile);
+            } catch (IOException e) {
+                System.out.println("Unable to map water file " + waterFile);
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
+        FlowSim sim = new FlowSim(land, rivers);
+        if (threads > 0)
+            sim.setParallelism(threads);
+        if (synchronous) // deterministic without a seed, as the traversal order does not matter
+            sim.setSynchronous(true);
+        if (seed != null) { // reproducible: the same traversal order and a result independent of the threads
+            rivers.setSeed(seed);
+            sim.setDeterministic(true);
+        }
+        if (restoreFile != null) { // carries on with the seed and timestep count of the checkpoint
+            try {
+                sim.restore(restoreFile);
+            } catch (IOException e) {
+                System.out.println("Unable to restore checkpoint " + restoreFile);
+                e.printStackTrace();
+                System.exit(1);
+            }
+            System.out.printf("Restored timestep %d from %s%n", sim.getStepCount(), restoreFile);
+        }
+        for (int[] src : sources)
+            rivers.makeSource(src[0], src[1]);
+        if (checkpointFile != null && every > 0)
+            sim.setCheckpointing(checkpointFile, every);
+        if (steadyWindow > 0) // stops early once the water has settled
+            sim.setSteadyWindow(steadyWindow);
+
+        long[] gcBefore = gcTotals();
+        long start = System.nanoTime();
+        long first = sim.getStepCount();
+        for (int s = 0, round = 1; s < numSteps; s++) {
+            if (sim.isSteady()) {
+                if (round++ >= rounds)
+                    break;
+                System.out.printf("Steady at timestep %d%n", sim.getSteadyStep());
+                for (int[] src : sources) // pour the same water again, which wakes the simulation
+                    sim.makeSource(src[0], src[1]);
+            }
+            sim.step();
+        }
+        long elapsed = System.nanoTime() - start;
+        long[] gcAfter = gcTotals();
+        long ran = sim.getStepCount() - first;
+        if (checkpointFile != null && (every <= 0 || sim.getStepCount() % every != 0)) {
+            sim.awaitCheckpoint();
+            sim.checkpoint(checkpointFile); // the final state, unless the last timestep already took it
+        }
+        sim.shutdown();
+
+        double seconds = elapsed / 1e9;
+        System.out.printf("Timesteps: %d on %d threads (%s)%n", ran, sim.getParallelism(), sim.isSynchronous() ? "synchronous" : "seed " + rivers.getSeed());
+        if (sim.isSteady())
+            System.out.printf("Steady at timestep %d%n", sim.getSteadyStep());
+        System.out.printf("Steps/sec: %.1f%n", ran / seconds);
+        System.out.printf("Time per step: %.3f ms%n", elapsed / 1e6 / Math.max(1, ran));
+        System.out.printf("Total mass: %d (drained at edges: %d)%n", rivers.totalMass(), rivers.getDrained());
+        System.out.printf("Allocated per step: %d bytes%n", sim.getAllocatedPerStep());
+        System.out.printf("GC: %d collections, %d ms (depths %s)%n", gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1], rivers.isOffHeap() ? "off heap" : "on heap");
+
+        if (outFile != null) {
+            try {
+                writeDepths(rivers, outFile);
+            } catch (IOException e) {
+                System.out.println("Unable to write output file " + outFile);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /***
+     * Sums the collections and collection time of every garbage collector so far.
+     * @return the number of collections and their total time in milliseconds
+     */
+    private static long[] gcTotals() {
+        long[] totals = new long[2];
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            totals[0] += Math.max(0, gc.getCollectionCount());
+            totals[1] += Math.max(0, gc.getCollectionTime());
+        }
+        return totals;
+    }
+
+    /***
+     * Parses a water source of the form "x y".
+     * @param text the coordinates of the source separated by whitespace
+     * @return the x and y coordinates of the source
+     */
+    static int[] parseSource(String text) {
+        String[] parts = text.trim().split("\\s+");
+        if (parts.length != 2)
+            throw new IllegalArgumentException(text);
+        return new int[]{Integer.parseInt(parts[0]), Integer.parseInt(parts[1])};
+    }
+
+    /***
+     * Reads water sources from a file with one "x y" pair per line. Blank lines and lines starting with # are skipped.
+     * @param fileName the name of the file with the sources
+     * @param sources the list the sources are added to
+     * @throws FileNotFoundException if the file cannot be opened
+     */
+    private static void readSources(String fileName, ArrayList<int[]> sources) throws FileNotFoundException {
+        Scanner sc = new Scanner(new File(fileName));
+        while (sc.hasNextLine()) {
+            String line = sc.nextLine().trim();
+            if (!line.isEmpty() && !line.startsWith("#"))
+                sources.add(parseSource(line));
+        }
+        sc.close();
+    }
+
+    /***
+     * Writes the depth grid in the same layout as the terrain input files: the dimensions, then the depths with x as the outer loop.
+     * @param rivers an object which contains depths of the water across the terrain
+     * @param fileName the name of the file to write
+     * @throws IOException if the file cannot be written
+     */
+    static void writeDepths(Water rivers, String fileName) throws IOException {
+        PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(fileName)));
+        out.println(rivers.getDimX() + " " + rivers.getDimY());
+        for (int x = 0; x < rivers.getDimX(); x++)
+            for (int y = 0; y < rivers.getDimY(); y++) {
+                out.print(rivers.getDepth(x,y));
+                out.print(' ');
+            }
+        out.println();
+        out.close();
+        if (out.checkError())
+            throw new IOException("write failed");
+    }
+}
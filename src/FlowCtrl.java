@@ -1,4 +1,5 @@
 import java.util.concurrent.atomic.AtomicBoolean;
+import javax.swing.SwingUtilities;
 
 /***
  * A runnable class which activates and controls the flow of water, and updates the time.
@@ -8,19 +9,54 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public class FlowCtrl implements Runnable {
 
     /***
-     * An array of four threads that will run the flow simulation.
+     * How often the steps per second figure is recalculated, in nanoseconds.
      */
-    private FlowThread[] flowThreads = new FlowThread[4];
-    
+    private static final long RATE_INTERVAL = 500_000_000L;
+
+    /***
+     * The time aimed for between frames in turbo mode, in nanoseconds, set with -Dflow.turboFps.
+     */
+    private static final long TURBO_FRAME_TIME = 1_000_000_000L / Math.max(1, Integer.getInteger("flow.turboFps", 10));
+
+    /***
+     * The most timesteps run between two frames in turbo mode.
+     */
+    private static final int MAX_STEPS_PER_FRAME = 1 << 16;
+
+    /***
+     * The simulation engine that advances the water.
+     */
+    private FlowSim sim;
+
     /**
      * Used to determine whether the threads should stop or not.
      */
     private AtomicBoolean stopWork = new AtomicBoolean(false);
 
     /**
-     * Used to determine whether the threads are complete or not.
+     * Used to make sure only one simulation loop drives the workers at a time.
      */
-    private AtomicBoolean done = new AtomicBoolean(true);
+    private AtomicBoolean running = new AtomicBoolean(false);
+
+    /**
+     * The most recently measured number of timesteps completed per second.
+     */
+    private volatile double stepsPerSec;
+
+    /***
+     * Whether the simulation runs in turbo mode, taking one frame after every batch of stepsPerFrame timesteps.
+     */
+    private volatile boolean turbo;
+
+    /***
+     * The number of timesteps in the next batch in turbo mode, adjusted after every frame to keep to the turbo frame time.
+     */
+    private volatile int stepsPerFrame = 1;
+
+    /***
+     * The timestep to stop at without taking any frames before it, or -1 to run until paused.
+     */
+    private volatile long stopAt = -1;
 
     /**
      * A text area that shows the simulation time.
@@ -40,66 +76,171 @@ public class FlowCtrl implements Runnable {
     public FlowCtrl(FlowPanel fp, TimeText tt) {
         flowP = fp;
         timeT = tt;
+        sim = new FlowSim(fp.getTerrain(), fp.getWater());
+        sim.setFrameListener(this::frameReady);
+        sim.setSteadyWindow(Long.getLong("flow.steadyWindow", 200)); // so that settled water leaves the cores idle
     }
 
     /***
-     * Creates the water source on the FlowPanel.
-     * @param x x-coordinate of the new water point
-     * @param y y-coordinate of the new water point
+     * Called on the simulation thread whenever a new frame is ready. Asks Swing to repaint and update the time, without waiting for it.
+     */
+    private void frameReady() {
+        flowP.repaint();
+        SwingUtilities.invokeLater(this::showStatus);
+    }
+
+    /***
+     * Shows the timestep, simulation speed, displayed frame rate and frame time. Runs on the Swing thread.
+     */
+    private void showStatus() {
+        timeT.setTime(sim.getStepCount());
+        timeT.setRate(stepsPerSec);
+        timeT.setStepsPerFrame(turbo ? stepsPerFrame : 0);
+        timeT.setSteady(sim.getSteadyStep());
+        timeT.setFps(flowP.getFps());
+        timeT.setFrameTime(flowP.getFrameTime());
+        timeT.showTime();
+    }
+
+    /***
+     * Gets the simulation engine controlled by this object.
+     * @return the simulation engine
+     */
+    public FlowSim getSim() {
+        return sim;
+    }
+
+    /***
+     * Creates the water source at a point clicked in the FlowPanel, which then shows up on it. Clicks outside the grid are ignored.
+     * While the simulation runs, the source is only queued and is added at the start of the next timestep, so dragging never waits for a timestep. Otherwise it is added straight away.
+     * Must be called on the Swing thread, as the click is converted into a grid point through the panel's current view.
+     * @param x x-coordinate of the mouse in the panel
+     * @param y y-coordinate of the mouse in the panel
      */
     public void makeSource(int x, int y) {
-        flowP.makeSource(x, y);
+        Viewport view = flowP.getView();
+        int gx = view.toGridX(x), gy = view.toGridY(y);
+        if (!view.inGrid(gx, gy))
+            return;
+        sim.makeSource(gx, gy);
+        if (!running.get()) // queued first, so a loop that has just stopped either adds it or leaves it for this
+            sim.flushSources();
     }
 
     /***
      * Resets the Water object and the time text.
      */
     public void reset() {
-        flowP.resetRivers();
+        sim.reset();
         timeT.resetTime();
     }
 
     /***
-     * Sets the stopWork boolean to true to pause the simulation.
+     * Sets the stopWork boolean to true to pause the simulation, and forgets any timestep it was asked to run until.
      */
     public void pause() {
+        stopAt = -1;
         stopWork.set(true);
     }
 
     /***
-     * Creates and starts the four threads which run the simulation, and sets the done boolean to false.
+     * Switches turbo mode on or off. In turbo mode as many timesteps are run between frames as fit in the turbo frame time, rather than taking frames at the display rate.
+     * @param on true to run timesteps in batches with one frame after each
      */
-    public void doWork() {
-        for (int i = 0; i<4; i++) {
-            flowThreads[i] = new FlowThread(i, flowP.getTerrain(), flowP.getWater());
-            flowThreads[i].setName("fThread" + i);
-        }
-        for (int i = 0; i<4; i++) // separate for loop so that threads start as close to simultaneously as possible
-            flowThreads[i].start();
+    public void setTurbo(boolean on) {
+        turbo = on;
+    }
 
-        done.set(false);
+    /***
+     * Checks whether the simulation runs in turbo mode.
+     * @return true in turbo mode
+     */
+    public boolean isTurbo() {
+        return turbo;
     }
 
     /***
-     * Returns true if all the threads are complete.
-     * @return the done value
+     * Gets the number of timesteps run between frames in turbo mode.
+     * @return the current batch size
      */
-    public AtomicBoolean allDone() {
-        if (flowThreads[0]!=null && !flowThreads[0].isAlive() && !flowThreads[1].isAlive() && !flowThreads[2].isAlive() && !flowThreads[3].isAlive())
-            done.set(true);
-        return done;
+    public int getStepsPerFrame() {
+        return stepsPerFrame;
+    }
+
+    /***
+     * Makes the simulation stop at a timestep, taking no frames until it gets there. Takes effect when run is next called, or straight away if it is running.
+     * @param step the timestep count to stop at
+     */
+    public void runUntil(long step) {
+        stopAt = step;
     }
 
     /***
-     * Starts the simulation and continues while stopWork is false and only if the previous threads are complete.
+     * Gets the most recently measured simulation speed.
+     * @return the number of timesteps completed per second
+     */
+    public double getStepsPerSec() {
+        return stepsPerSec;
+    }
+
+    /***
+     * Starts the simulation and runs timesteps back-to-back while stopWork is false, or until the timestep given to runUntil. Does nothing if the simulation is already running.
+     * The simulation takes frames for display at its own frame rate and never waits for painting. In turbo mode a frame is taken after each batch of timesteps instead, and when running until a timestep none are taken until it stops, with only the time shown as it goes.
      */
     public void run() {
         stopWork.set(false);
-        while (!stopWork.get())
-            if (allDone().get()) {
-                doWork();
-                flowP.repaint();
-                timeT.updateTime();
+        if (!running.compareAndSet(false, true))
+            return;
+        long windowStart = System.nanoTime();
+        int windowSteps = 0;
+        while (!stopWork.get()) {
+            long until = stopAt;
+            if (until >= 0 && sim.getStepCount() >= until) {
+                stopAt = -1;
+                break;
             }
+            sim.setAutoFrames(until < 0 && !turbo);
+            if (until < 0 && turbo)
+                windowSteps += runBatch();
+            else {
+                long before = sim.getStepCount();
+                sim.step(); // returns without a timestep while the water is steady
+                windowSteps += Math.max(0, sim.getStepCount() - before);
+            }
+            long now = System.nanoTime();
+            if (now - windowStart >= RATE_INTERVAL) {
+                stepsPerSec = windowSteps * 1e9 / (now - windowStart); // including the time taken by frames, so it is the speed actually seen
+                windowStart = now;
+                windowSteps = 0;
+                if (until >= 0) // no frames are taken, so nothing else shows the time
+                    SwingUtilities.invokeLater(this::showStatus);
+            }
+        }
+        sim.setAutoFrames(true);
+        running.set(false);
+        sim.flushSources(); // add sources queued as it stopped and show the timestep it stopped at
+    }
+
+    /***
+     * Runs a batch of stepsPerFrame timesteps and takes a frame after it. The batch is then resized so that the next one, frame included, takes about the turbo frame time, by at most a factor of two either way so that a slow timestep does not throw it off.
+     * @return the number of timesteps run, fewer than the batch if the simulation was paused or the water became steady meanwhile
+     */
+    private int runBatch() {
+        int k = stepsPerFrame;
+        long began = System.nanoTime();
+        int done = 0;
+        while (done < k && !stopWork.get()) {
+            long before = sim.getStepCount();
+            sim.step();
+            if (sim.getStepCount() == before)
+                break; // steady, so there is nothing to run until it is woken
+            done++;
+        }
+        sim.publishFrame();
+        if (done == k) {
+            double ratio = TURBO_FRAME_TIME / (double) Math.max(1, System.nanoTime() - began);
+            stepsPerFrame = (int) Math.max(1, Math.min(MAX_STEPS_PER_FRAME, Math.round(k * Math.max(0.5, Math.min(2.0, ratio)))));
+        }
+        return done;
     }
-}
\ No newline at end of file
+}
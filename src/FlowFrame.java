@@ -0,0 +1,94 @@
+/***
+ * A snapshot of the water depths taken between timesteps, for the GUI to draw while the simulation carries on.
+ * Frames are recycled by Water: a frame is only written while it is owned by the simulation and only read while it is owned by the renderer.
+ * @author Rea Keebine
+ * @version 1.0.0 Oct 18, 2026
+ */
+public class FlowFrame {
+
+    /***
+     * A copy of the depth grid, in the same row order as Water.
+     */
+    private int[] depth;
+
+    /***
+     * One bit per point, set if the depth of the point changed since the frame numbered baseSeq.
+     */
+    private long[] changed;
+
+    /***
+     * The timestep the snapshot was taken after.
+     */
+    private long step;
+
+    /***
+     * The number of this frame, counting up from one with every frame taken.
+     */
+    private long seq;
+
+    /***
+     * The number of the frame that the changed bits are relative to.
+     */
+    private long baseSeq;
+
+    /***
+     * Creates an empty frame for a grid of the given size.
+     * @param size the number of points in the grid
+     */
+    public FlowFrame(int size) {
+        depth = new int[size];
+        changed = new long[(int) ((size + 63L) / 64)];
+    }
+
+    /***
+     * Gets the snapshot of the depth grid. The array must not be modified.
+     * @return the depths in row order
+     */
+    public int[] getDepth() {
+        return depth;
+    }
+
+    /***
+     * Gets the bitmap of points whose depth changed since frame getBaseSeq(). The array must not be modified.
+     * @return one bit per point, in row order
+     */
+    public long[] getChanged() {
+        return changed;
+    }
+
+    /***
+     * Gets the timestep the snapshot was taken after.
+     * @return the timestep count
+     */
+    public long getStep() {
+        return step;
+    }
+
+    /***
+     * Gets the number of this frame.
+     * @return the frame number
+     */
+    public long getSeq() {
+        return seq;
+    }
+
+    /***
+     * Gets the number of the frame that the changed bits are relative to. A renderer that did not draw that frame must redraw everything.
+     * @return the base frame number
+     */
+    public long getBaseSeq() {
+        return baseSeq;
+    }
+
+    /***
+     * Labels the frame after its contents have been filled in.
+     * @param timestep the timestep the snapshot was taken after
+     * @param number the number of this frame
+     * @param base the number of the frame the changed bits are relative to
+     */
+    void label(long timestep, long number, long base) {
+        step = timestep;
+        seq = number;
+        baseSeq = base;
+    }
+}
@@ -1,8 +1,15 @@
 import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Transparency;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import javax.swing.JPanel;
 
 /***
- * A panel that shows the water and terrain images overlaid on each other.
+ * A panel that shows the water and terrain images overlaid on each other, through a viewport that can be panned and zoomed.
+ * Only the part of the grid in view is drawn, from mipmap levels that match the zoom, so painting costs time proportional to the size of the panel rather than the grid.
  * @author James Gain, Rea Keebine
  * @version 1.0.0 Sep 6, 2020
  */
@@ -18,6 +25,76 @@ public class FlowPanel extends JPanel {
 	 */
 	private Water rivers;
 
+	/***
+	 * How the terrain is shaded.
+	 */
+	private TerrainLayer.Shading shading = TerrainLayer.Shading.GREYSCALE;
+
+	/***
+	 * The part of the grid shown in the panel.
+	 */
+	private Viewport view;
+
+	/***
+	 * Whether the view has been fitted to the panel, which is done on the first paint once the panel has a size.
+	 */
+	private boolean fitted;
+
+	/***
+	 * The mipmap of the shaded terrain. Null until the next paint after the shading changes.
+	 */
+	private TerrainLayer landLayer;
+
+	/***
+	 * The downsampled levels of the water, created on the first paint.
+	 */
+	private WaterLayer waterLayer;
+
+	/***
+	 * The most texels a level of the terrain may have to be kept as an image, set with -Dflow.maxLayerImage. Finer levels of large terrains are drawn into landImg instead.
+	 */
+	private static final int MAX_LEVEL_IMAGE = Integer.getInteger("flow.maxLayerImage", 1 << 24);
+
+	/***
+	 * Display-compatible images of the levels of landLayer, each shaded once when first drawn so that Java2D can keep it in video memory. A level without an image is null.
+	 */
+	private BufferedImage[] landImages;
+
+	/***
+	 * The terrain and the water in view, each the size of the panel.
+	 */
+	private BufferedImage landImg, waterImg;
+
+	/***
+	 * The view versions that landImg and waterImg were drawn for, or -1 if they need drawing.
+	 */
+	private long landVersion = -1, waterVersion = -1;
+
+	/***
+	 * The grid column under each pixel of a row, worked out while drawing.
+	 */
+	private int[] cols;
+
+	/***
+	 * The average time taken to paint a frame, in nanoseconds.
+	 */
+	private volatile double frameTime;
+
+	/***
+	 * The number of frames painted per second, measured over the last second.
+	 */
+	private volatile double fps;
+
+	/***
+	 * When the current frame rate measurement started, from System.nanoTime.
+	 */
+	private long fpsStart = System.nanoTime();
+
+	/***
+	 * The number of frames painted since fpsStart.
+	 */
+	private int fpsFrames;
+
 	/***
 	 * Creates a FlowPanel object with given Terrain and Water objects.
 	 * @param terrain an object which contains heights across the terrain
@@ -26,6 +103,7 @@ public class FlowPanel extends JPanel {
 	public FlowPanel(Terrain terrain, Water water) {
 		land = terrain;
 		rivers = water;
+		view = new Viewport(terrain.getDimX(), terrain.getDimY());
 	}
 
 	/***
@@ -45,44 +123,165 @@ public class FlowPanel extends JPanel {
 	}
 
 	/***
-	 * Responsible for painting the terrain and water as images.
-	 * @param g the graphic object used to draw the images
+	 * Sets how the terrain is shaded and repaints the panel. Each shading is only computed once.
+	 * @param s the new shading
 	 */
-	@Override
-    protected void paintComponent(Graphics g) {
-		int width = getWidth();
-		int height = getHeight();
-		  
-		super.paintComponent(g);
-		land.deriveImage();
-		rivers.deriveImage();
-		
-		// draw the landscape in greyscale as an image
-		if (land.getImage() != null){
-			g.drawImage(land.getImage(), 0, 0, null);
-		}
+	public void setShading(TerrainLayer.Shading s) {
+		shading = s;
+		landLayer = null;
+		landImages = null;
+		repaint();
+	}
 
-		// draw the water as an image
-		if (rivers.getImage() != null){
-			g.drawImage(rivers.getImage(), 0, 0, null);
-		}
+	/***
+	 * Gets the part of the grid shown, for converting mouse positions into grid points. Must only be used on the Swing thread.
+	 * @return the viewport
+	 */
+	public Viewport getView() {
+		return view;
+	}
+
+	/***
+	 * Moves the view by a number of screen pixels and repaints.
+	 * @param dx pixels dragged to the right
+	 * @param dy pixels dragged down
+	 */
+	public void pan(int dx, int dy) {
+		view.pan(dx, dy);
+		repaint();
 	}
 
 	/***
-	 * Creates the water source on the Water object and repaints the panel.
-	 * @param x x-coordinate of the new water point
-	 * @param y y-coordinate of the new water point
+	 * Zooms the view around a point in the panel and repaints.
+	 * @param factor how much to magnify, more than one to zoom in
+	 * @param x x-coordinate in the panel to zoom around
+	 * @param y y-coordinate in the panel to zoom around
 	 */
-	public void makeSource(int x, int y) {
-		rivers.makeSource(x, y);
+	public void zoom(double factor, int x, int y) {
+		view.zoom(factor, x, y);
 		repaint();
 	}
 
 	/***
-	 * Resets the Water object and repaints the panel.
+	 * Fits the whole grid in the panel and repaints.
 	 */
-	public void resetRivers() {
-		rivers.reset();
+	public void fitView() {
+		view.fit(getWidth(), getHeight());
 		repaint();
 	}
+
+	/***
+	 * Gets the average time taken to paint a frame.
+	 * @return the frame time in milliseconds
+	 */
+	public double getFrameTime() {
+		return frameTime / 1e6;
+	}
+
+	/***
+	 * Gets the number of frames painted per second.
+	 * @return the displayed frame rate
+	 */
+	public double getFps() {
+		return fps;
+	}
+
+	/***
+	 * Makes a screen-sized image for a layer, with pixels that can be written directly.
+	 * @param w the width of the panel
+	 * @param h the height of the panel
+	 * @return the image
+	 */
+	private static BufferedImage layerImage(int w, int h) {
+		return new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+	}
+
+	/***
+	 * Gets the image of a level of the terrain, copying the level into a display-compatible image the first time it is asked for.
+	 * @param level the level
+	 * @return the image, or null if the level is too large to keep as one
+	 */
+	private BufferedImage landImage(int level) {
+		if (landImages == null)
+			landImages = new BufferedImage[landLayer.getLevelCount()];
+		int w = landLayer.getLevelWidth(level), h = landLayer.getLevelHeight(level);
+		if (landImages[level] == null && (long) w*h <= MAX_LEVEL_IMAGE) {
+			GraphicsConfiguration gc = getGraphicsConfiguration();
+			BufferedImage img = (gc != null) ? gc.createCompatibleImage(w, h, Transparency.OPAQUE) : new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+			int[] row = new int[w];
+			for (int y = 0; y < h; y++) {
+				landLayer.getRow(level, y, row);
+				img.setRGB(0, y, w, 1, row, 0, w); // through the raster, so the image stays managed
+			}
+			landImages[level] = img;
+		}
+		return landImages[level];
+	}
+
+	/***
+	 * Gets the pixels of a layer image.
+	 * @param img the image
+	 * @return the packed ARGB pixels in row order
+	 */
+	private static int[] pixels(BufferedImage img) {
+		return ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+	}
+
+	/***
+	 * Responsible for painting the terrain and water in view. The terrain is blitted from the image of the level that matches the zoom, or redrawn when the view changes if that level has no image, and the water is redrawn when a new frame arrives or the view changes.
+	 * @param g the graphic object used to draw the images
+	 */
+	@Override
+    protected void paintComponent(Graphics g) {
+		long start = System.nanoTime();
+		  
+		super.paintComponent(g);
+		int w = Math.max(1, getWidth()), h = Math.max(1, getHeight());
+		if (!fitted) {
+			view.fit(w, h);
+			fitted = true;
+		}
+		if (landImg == null || landImg.getWidth() != w || landImg.getHeight() != h) { // the panel was resized
+			landImg = layerImage(w, h);
+			waterImg = layerImage(w, h);
+			cols = new int[w];
+			landVersion = -1;
+			waterVersion = -1;
+		}
+		if (landLayer == null) {
+			landLayer = new TerrainLayer(land, shading);
+			landVersion = -1;
+		}
+		if (waterLayer == null)
+			waterLayer = new WaterLayer(rivers);
+
+		int level = view.getLevel(landLayer.getLevelCount());
+		BufferedImage levelImg = landImage(level);
+		if (levelImg == null && landVersion != view.getVersion()) {
+			landLayer.draw(view, pixels(landImg), w, h, cols);
+			landVersion = view.getVersion();
+		}
+		if (waterLayer.update() || waterVersion != view.getVersion()) {
+			waterLayer.draw(view, pixels(waterImg), w, h, cols);
+			waterVersion = view.getVersion();
+		}
+
+		// draw the landscape, then the water over it
+		if (levelImg != null) {
+			double s = view.getScale();
+			AffineTransform at = new AffineTransform(s*(1 << level), 0, 0, s*(1 << level), -view.getOriginX()*s, -view.getOriginY()*s);
+			((Graphics2D) g).drawImage(levelImg, at, null);
+		} else
+			g.drawImage(landImg, 0, 0, null);
+		g.drawImage(waterImg, 0, 0, null);
+
+		long end = System.nanoTime();
+		frameTime = (frameTime == 0) ? end - start : 0.9*frameTime + 0.1*(end - start); // smooth over the last few frames
+		fpsFrames++;
+		if (end - fpsStart >= 1_000_000_000L) {
+			fps = fpsFrames * 1e9 / (end - fpsStart);
+			fpsStart = end;
+			fpsFrames = 0;
+		}
+	}
 }
\ No newline at end of file
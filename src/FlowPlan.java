@@ -0,0 +1,241 @@
+/***
+ * The outflow of every point for a synchronous timestep, in which all points move their water at once as if none had moved yet.
+ * A timestep takes two passes over the tiles. The first decides, from the depths at the start of the timestep, where each wet point sends its unit of water and records it here without changing any depth.
+ * The second gathers: each point works out its new depth from its own depth and the directions of its neighbours, and writes only that point. Neither pass writes anything another tile reads in the same pass, so tiles can be worked on by any number of threads in any order without locks, and the result is always the same.
+ * @author Rea Keebine
+ * @version 1.0.0 Oct 18, 2026
+ */
+public class FlowPlan {
+
+    /***
+     * The direction of a point that sends no water.
+     */
+    static final byte STAY = 0;
+
+    /***
+     * An object which contains depths of the water across the terrain.
+     */
+    private Water rivers;
+
+    /***
+     * Dimensions of the area.
+     */
+    private int dimx, dimy;
+
+    /***
+     * The neighbour each point sends its water to, one more than the index of its offset in around, or STAY. In row order.
+     */
+    private byte[] direction;
+
+    /***
+     * The tile size, and the number of tiles across and down the area.
+     */
+    private int tileSize, tilesX, tilesY;
+
+    /***
+     * For each tile, one bit per row of the tile, set if a point in the row sends water or drains off the edge in the current timestep. All bits are set if tiles are wider than 64.
+     */
+    private long[] rows;
+
+    /***
+     * For each tile, one bit per column of the tile, set in the same way as rows.
+     */
+    private long[] cols;
+
+    /***
+     * Linear offsets of the eight neighbours of a point, in the order north-west, north, north-east, west, east, south-west, south, south-east. The offset at 7 - n is the opposite of the one at n.
+     */
+    private final int[] around;
+
+    /***
+     * Creates an empty plan for a Water object.
+     * @param water an object which contains depths of the water across the terrain
+     */
+    public FlowPlan(Water water) {
+        rivers = water;
+        dimx = water.getDimX();
+        dimy = water.getDimY();
+        direction = new byte[dimx*dimy];
+        tileSize = water.getTileSize();
+        tilesX = water.getTilesX();
+        tilesY = water.getTileCount() / tilesX;
+        rows = new long[water.getTileCount()];
+        cols = new long[water.getTileCount()];
+        around = new int[]{-dimx-1, -dimx, -dimx+1,
+                           -1,             1,
+                           dimx-1,  dimx,  dimx+1};
+    }
+
+    /***
+     * Gets the direction code for sending water from a point to one of its neighbours.
+     * @param idx linear index of the point sending
+     * @param to linear index of the neighbour receiving
+     * @return the direction code
+     */
+    byte directionTo(int idx, int to) {
+        int n = 0;
+        while (idx + around[n] != to)
+            n++;
+        return (byte) (n + 1);
+    }
+
+    /***
+     * Clears the directions of a tile left from the last timestep. Called in the first pass before planning the tile.
+     * @param t the tile number
+     */
+    void clear(int t) {
+        if (rows[t] == 0)
+            return;
+        int origin = rivers.getTileOrigin(t);
+        for (int y = 0; y < rivers.getTileHeight(t); y++)
+            if (((rows[t] >>> y) & 1) != 0 || tileSize > 64)
+                for (int x = 0; x < rivers.getTileWidth(t); x++)
+                    if (((cols[t] >>> x) & 1) != 0 || tileSize > 64)
+                        direction[origin + y*dimx + x] = STAY;
+        rows[t] = 0;
+        cols[t] = 0;
+    }
+
+    /***
+     * Records where a point in a tile sends its water. Called in the first pass, only for points of the tile being planned.
+     * @param t the tile the point is in
+     * @param idx linear index of point
+     * @param code the direction code from directionTo
+     */
+    void send(int t, int idx, byte code) {
+        direction[idx] = code;
+        touch(t, idx);
+    }
+
+    /***
+     * Records that a point on the edge of the area holds water, which the second pass drains. Called in the first pass, only for points of the tile being planned.
+     * @param t the tile the point is in
+     * @param idx linear index of point
+     */
+    void drains(int t, int idx) {
+        touch(t, idx);
+    }
+
+    /***
+     * Sets the row and column bits of a point in its tile.
+     * @param t the tile the point is in
+     * @param idx linear index of point
+     */
+    private void touch(int t, int idx) {
+        if (tileSize > 64) {
+            rows[t] = -1L;
+            cols[t] = -1L;
+        } else {
+            rows[t] |= 1L << ((idx / dimx) & (tileSize - 1));
+            cols[t] |= 1L << ((idx % dimx) & (tileSize - 1));
+        }
+    }
+
+    /***
+     * Spreads the bits of a mask to the bits next to them, as the points in a row or column next to one that sends may receive.
+     * @param m the mask
+     * @return the mask with its neighbouring bits set
+     */
+    private static long spread(long m) {
+        return m | (m << 1) | (m >>> 1);
+    }
+
+    /***
+     * Gets the row or column bits of a tile, or 0 for a tile off the area.
+     * @param masks rows or cols
+     * @param tx the column of the tile
+     * @param ty the row of the tile
+     * @return the bits
+     */
+    private long mask(long[] masks, int tx, int ty) {
+        return (tx < 0 || ty < 0 || tx >= tilesX || ty >= tilesY) ? 0 : masks[ty*tilesX + tx];
+    }
+
+    /***
+     * Works out the rows or columns of a tile that may change depth in the second pass: those next to a row or column with a point that sends or drains, in the tile or in the tiles beside it.
+     * @param masks rows for the rows of the tile, cols for its columns
+     * @param tx the column of the tile
+     * @param ty the row of the tile
+     * @param acrossX x-offset to the tiles beside it, whose rows or columns line up with its own: 1 for rows
+     * @param acrossY y-offset to the tiles beside it: 1 for columns
+     * @param alongX x-offset to the tile before it, whose last row or column touches its first: 1 for columns
+     * @param alongY y-offset to the tile before it: 1 for rows
+     * @return one bit per row or column of the tile
+     */
+    private long needed(long[] masks, int tx, int ty, int acrossX, int acrossY, int alongX, int alongY) {
+        long m = spread(mask(masks, tx, ty) | mask(masks, tx - acrossX, ty - acrossY) | mask(masks, tx + acrossX, ty + acrossY));
+        long before = mask(masks, tx - alongX, ty - alongY) | mask(masks, tx - alongX - acrossX, ty - alongY - acrossY) | mask(masks, tx - alongX + acrossX, ty - alongY + acrossY);
+        long after = mask(masks, tx + alongX, ty + alongY) | mask(masks, tx + alongX - acrossX, ty + alongY - acrossY) | mask(masks, tx + alongX + acrossX, ty + alongY + acrossY);
+        if ((before >>> (tileSize - 1) & 1) != 0) // the last row or column of the tile before touches the first of this one
+            m |= 1;
+        if ((after & 1) != 0)
+            m |= 1L << (tileSize - 1);
+        return (tileSize < 64) ? m & ((1L << tileSize) - 1) : m;
+    }
+
+    /***
+     * The second pass over a tile. Sets the depth of every point to its depth at the start of the timestep, less the unit it sent, plus a unit from each neighbour that sent to it.
+     * Points on the edge of the area drain all the water they held and keep only what arrives. Only points of the tile are written.
+     * @param t the tile number
+     * @return the number of units of water received from neighbours
+     */
+    int gather(int t) {
+        int tx = t % tilesX, ty = t / tilesX;
+        long needRows = (tileSize > 64) ? -1L : needed(rows, tx, ty, 1, 0, 0, 1);
+        long needCols = (tileSize > 64) ? -1L : needed(cols, tx, ty, 0, 1, 1, 0);
+        if (needRows == 0 || needCols == 0)
+            return 0;
+        int received = 0;
+        int origin = rivers.getTileOrigin(t), w = rivers.getTileWidth(t), h = rivers.getTileHeight(t);
+        int x0 = origin % dimx, y0 = origin / dimx;
+        for (int y = y0; y < y0 + h; y++) {
+            if (tileSize <= 64 && ((needRows >>> (y - y0)) & 1) == 0)
+                continue;
+            for (int x = x0, idx = y*dimx + x0; x < x0 + w; x++, idx++) {
+                if (tileSize <= 64 && ((needCols >>> (x - x0)) & 1) == 0)
+                    continue;
+                boolean edge = (x == 0) || (y == 0) || (x == dimx - 1) || (y == dimy - 1);
+                int in = edge ? incomingAtEdge(idx) : incoming(idx);
+                byte out = direction[idx];
+                if (in == 0 && out == STAY && !edge)
+                    continue;
+                int d = rivers.getDepth(idx);
+                if (edge) {
+                    if (d > 0 || in > 0)
+                        rivers.settle(idx, in, d);
+                } else
+                    rivers.settle(idx, d - (out != STAY ? 1 : 0) + in, 0);
+                received += in;
+            }
+        }
+        return received;
+    }
+
+    /***
+     * Counts the neighbours that send their water to a point away from the edge.
+     * @param idx linear index of point
+     * @return the number of units arriving
+     */
+    private int incoming(int idx) {
+        int in = 0;
+        for (int n = 0; n < 8; n++)
+            if (direction[idx + around[n]] == 8 - n) // the neighbour at n sends in the opposite direction, 7 - n
+                in++;
+        return in;
+    }
+
+    /***
+     * Counts the neighbours that send their water to a point on the edge. Offsets that wrap around to the other side of the area land on edge points, which never send, so only the rows off the top and bottom need leaving out.
+     * @param idx linear index of point
+     * @return the number of units arriving
+     */
+    private int incomingAtEdge(int idx) {
+        int in = 0;
+        for (int n = 0; n < 8; n++) {
+            int nb = idx + around[n];
+            if (nb >= 0 && nb < direction.length && direction[nb] == 8 - n)
+                in++;
+        }
+        return in;
+    }
+}
@@ -0,0 +1,232 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/***
+ * Runs many independent water flow scenarios on the same terrain at once, without a GUI, and writes the results of each and the overall throughput to disk.
+ * The terrain is loaded once and shared by every scenario, as nothing writes to its heights. Each scenario only adds its own Water object, whose depth pages are allocated as it gets wet, so memory grows with the water in the scenarios running rather than with the terrain.
+ * Scenarios run on a fixed pool, one per runner at a time, each with its own worker threads.
+ * @author Rea Keebine
+ * @version 1.0.0 Oct 18, 2026
+ */
+public class FlowScenarios {
+
+    /***
+     * The command-line usage of the scenario runner.
+     */
+    private static final String USAGE = "Usage: java FlowScenarios inputfilename scenariofile [-outdir directory] [-parallel n] [-threads n] [-steady window] [-mode inplace|synchronous]";
+
+    /***
+     * The name of the file in the output directory that lists the results of every scenario.
+     */
+    private static final String SUMMARY = "scenarios.csv";
+
+    /***
+     * A run of the simulation from dry land: its water sources, how many timesteps to run and the seed of its traversal order.
+     */
+    private static final class Scenario {
+        final String name;
+        final long steps;
+        final long seed;
+        final ArrayList<int[]> sources;
+
+        Scenario(String name, long steps, long seed, ArrayList<int[]> sources) {
+            this.name = name;
+            this.steps = steps;
+            this.seed = seed;
+            this.sources = sources;
+        }
+    }
+
+    /***
+     * Loads the terrain, reads the scenarios, runs them and writes the results.
+     * @param args command-line arguments: the terrain file name, the scenario file name and the options
+     */
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+
+        // check that number of command line arguments is correct
+        if (args.length < 2 || args.length % 2 != 0) {
+            System.out.println(USAGE);
+            System.exit(0);
+        }
+
+        String terrainFile = args[0];
+        File outDir = new File("out");
+        int parallel = Runtime.getRuntime().availableProcessors();
+        int threads = 1;
+        long steadyWindow = 0;
+        boolean synchronous = false;
+        for (int i = 2; i < args.length; i += 2) {
+            switch (args[i]) {
+                case "-outdir":
+                    outDir = new File(args[i+1]);
+                    break;
+                case "-parallel":
+                    parallel = Math.max(1, Integer.parseInt(args[i+1]));
+                    break;
+                case "-threads":
+                    threads = Math.max(1, Integer.parseInt(args[i+1]));
+                    break;
+                case "-steady":
+                    steadyWindow = Long.parseLong(args[i+1]);
+                    break;
+                case "-mode":
+                    if (!args[i+1].equals("inplace") && !args[i+1].equals("synchronous")) {
+                        System.out.println(USAGE);
+                        System.exit(0);
+                    }
+                    synchronous = args[i+1].equals("synchronous");
+                    break;
+                default:
+                    System.out.println(USAGE);
+                    System.exit(0);
+            }
+        }
+
+        ArrayList<Scenario> scenarios = null;
+        try {
+            scenarios = readScenarios(args[1]);
+        } catch (FileNotFoundException e) {
+            System.out.println("Unable to open scenario file " + e.getMessage());
+            System.exit(1);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Malformed scenario: " + e.getMessage());
+            System.exit(1);
+        }
+        if (!outDir.isDirectory() && !outDir.mkdirs()) {
+            System.out.println("Unable to create output directory " + outDir);
+            System.exit(1);
+        }
+
+        Terrain land = new Terrain(terrainFile);
+        if (land.dim() == 0)
+            System.exit(1); // the terrain could not be read, the reason has already been printed
+
+        final int workers = threads;
+        final long window = steadyWindow;
+        final boolean sync = synchronous;
+        final File dir = outDir;
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(parallel, scenarios.size()));
+        ArrayList<Future<String>> results = new ArrayList<Future<String>>();
+        long start = System.nanoTime();
+        for (Scenario sc : scenarios)
+            results.add(pool.submit(() -> run(land, sc, workers, window, sync, dir)));
+        pool.shutdown();
+
+        long totalSteps = 0;
+        int failed = 0;
+        File summary = new File(outDir, SUMMARY);
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(summary)))) {
+            out.println("name,steps,seed,sources,timesteps,steady_at,seconds,steps_per_sec,ms_per_step,mass,drained");
+            for (int i = 0; i < results.size(); i++) { // in the order of the scenario file, each as soon as it is done
+                String line;
+                try {
+                    line = results.get(i).get();
+                    totalSteps += Long.parseLong(line.split(",")[4]);
+                } catch (ExecutionException e) {
+                    System.out.println("Scenario " + scenarios.get(i).name + " failed");
+                    e.getCause().printStackTrace();
+                    failed++;
+                    continue;
+                }
+                out.println(line);
+                out.flush();
+                System.out.println(line);
+            }
+            long elapsed = System.nanoTime() - start;
+            double seconds = elapsed / 1e9;
+            out.printf("# %d scenarios (%d failed) on %d runners x %d threads in %.3f s: %d timesteps, %.1f steps/sec, %.2f scenarios/sec%n",
+                    scenarios.size(), failed, Math.min(parallel, scenarios.size()), workers, seconds, totalSteps, totalSteps / seconds, scenarios.size() / seconds);
+            System.out.printf("Scenarios: %d (%d failed) on %d runners x %d threads%n", scenarios.size(), failed, Math.min(parallel, scenarios.size()), workers);
+            System.out.printf("Wall time: %.3f s%n", seconds);
+            System.out.printf("Total timesteps: %d (%.1f steps/sec)%n", totalSteps, totalSteps / seconds);
+            System.out.printf("Results: %s%n", summary);
+            if (out.checkError())
+                throw new IOException("write failed");
+        } catch (IOException e) {
+            System.out.println("Unable to write summary file " + summary);
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        pool.shutdownNow();
+    }
+
+    /***
+     * Runs one scenario on its own Water object and writes its final depths to the output directory.
+     * @param land the terrain shared by all scenarios
+     * @param sc the scenario
+     * @param threads the number of worker threads for the scenario
+     * @param steadyWindow the steady window to stop early with, 0 to always run every timestep
+     * @param synchronous true for synchronous timesteps
+     * @param outDir the directory the depths are written to
+     * @return the line of the summary for the scenario
+     * @throws IOException if the depths cannot be written
+     */
+    private static String run(Terrain land, Scenario sc, int threads, long steadyWindow, boolean synchronous, File outDir) throws IOException {
+        Water rivers = new Water(land.getDimX(), land.getDimY());
+        FlowSim sim = new FlowSim(land, rivers);
+        sim.setParallelism(threads);
+        sim.setSynchronous(synchronous);
+        rivers.setSeed(sc.seed); // reproducible: the same scenario always gives the same depths
+        sim.setDeterministic(true);
+        for (int[] src : sc.sources)
+            rivers.makeSource(src[0], src[1]);
+        if (steadyWindow > 0)
+            sim.setSteadyWindow(steadyWindow);
+
+        long start = System.nanoTime();
+        try {
+            for (long s = 0; s < sc.steps && !sim.isSteady(); s++)
+                sim.step();
+        } finally {
+            sim.shutdown();
+        }
+        long elapsed = System.nanoTime() - start;
+        long ran = sim.getStepCount();
+
+        FlowBatch.writeDepths(rivers, new File(outDir, sc.name + "_out.txt").getPath());
+        double seconds = elapsed / 1e9;
+        return String.format("%s,%d,%d,%d,%d,%d,%.3f,%.1f,%.3f,%d,%d", sc.name, sc.steps, sc.seed, sc.sources.size(), ran, sim.getSteadyStep(),
+                seconds, ran / seconds, elapsed / 1e6 / Math.max(1, ran), rivers.totalMass(), rivers.getDrained());
+    }
+
+    /***
+     * Reads the scenarios from a file with one scenario per line: a name, the number of timesteps, the seed and one or more water sources as x,y. Blank lines and lines starting with # are skipped.
+     * @param fileName the name of the file with the scenarios
+     * @return the scenarios in the order of the file
+     * @throws FileNotFoundException if the file cannot be opened
+     */
+    private static ArrayList<Scenario> readScenarios(String fileName) throws FileNotFoundException {
+        ArrayList<Scenario> scenarios = new ArrayList<Scenario>();
+        ArrayList<String> names = new ArrayList<String>();
+        Scanner sc = new Scanner(new File(fileName));
+        while (sc.hasNextLine()) {
+            String line = sc.nextLine().trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            String[] parts = line.split("\\s+");
+            if (parts.length < 4 || names.contains(parts[0]) || !parts[0].matches("[\\w.-]+"))
+                throw new IllegalArgumentException(line); // names become file names, so they must be unique and safe
+            ArrayList<int[]> sources = new ArrayList<int[]>();
+            for (int i = 3; i < parts.length; i++)
+                sources.add(FlowBatch.parseSource(parts[i].replace(',', ' ')));
+            scenarios.add(new Scenario(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2]), sources));
+            names.add(parts[0]);
+        }
+        sc.close();
+        if (scenarios.isEmpty())
+            throw new IllegalArgumentException("no scenarios in " + fileName);
+        return scenarios;
+    }
+}
@@ -0,0 +1,726 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * The water flow simulation engine. Owns the worker threads and advances the Water over the Terrain one timestep at a time, without any GUI.
+ * @author Rea Keebine
+ * @version 1.0.0 Oct 18, 2026
+ */
+public class FlowSim {
+
+    /***
+     * An object which contains heights across the terrain.
+     */
+    private Terrain land;
+
+    /***
+     * An object which contains depths of the water across the terrain.
+     */
+    private Water rivers;
+
+    /***
+     * The number of worker threads that run the flow simulation, set with -Dflow.threads and defaulting to the number of available cores.
+     */
+    private int parallelism = Integer.getInteger("flow.threads", Runtime.getRuntime().availableProcessors());
+
+    /***
+     * The long-lived worker threads that run the flow simulation, created on the first timestep.
+     */
+    private FlowThread[] flowThreads;
+
+    /***
+     * Releases the workers at the start of a timestep, between its phases, and waits for all of them at the end of it.
+     */
+    private Phaser steps;
+
+    /***
+     * The tiles for the workers to claim in the current timestep, created with the workers.
+     */
+    private TileSchedule schedule;
+
+    /***
+     * Whether timesteps are run in checkerboard phases so that their result does not depend on the threads, switched on with -Dflow.deterministic=true.
+     */
+    private boolean deterministic = Boolean.getBoolean("flow.deterministic");
+
+    /***
+     * Whether timesteps are synchronous (Jacobi-style), with every point moving its water as if none had moved yet, switched on with -Dflow.synchronous=true. Such timesteps are always deterministic.
+     */
+    private boolean synchronous = Boolean.getBoolean("flow.synchronous");
+
+    /***
+     * Whether the total water mass is checked after every timestep, switched on with -Dflow.checkMass=true.
+     */
+    private volatile boolean checkMass = Boolean.getBoolean("flow.checkMass");
+
+    /***
+     * The number of timesteps run since the last reset.
+     */
+    private volatile long stepCount;
+
+    /***
+     * The minimum time between frames taken for display, in nanoseconds, set with -Dflow.fps.
+     */
+    private long frameInterval = 1_000_000_000L / Math.max(1, Integer.getInteger("flow.fps", 60));
+
+    /***
+     * When the last frame was taken, from System.nanoTime.
+     */
+    private long lastFrame;
+
+    /***
+     * Called on the simulation thread after each frame is taken, or null if nobody is displaying the water.
+     */
+    private volatile Runnable frameListener;
+
+    /***
+     * Whether step takes a frame by itself whenever the frame interval has passed. When off, frames are only taken by calling publishFrame.
+     */
+    private volatile boolean autoFrames = true;
+
+    /***
+     * The file checkpoints are written to every checkpointInterval timesteps, or null to not take them.
+     */
+    private Path checkpointFile;
+
+    /***
+     * The number of timesteps between checkpoints.
+     */
+    private long checkpointInterval;
+
+    /***
+     * Writes checkpoints in the background so that timesteps carry on while a checkpoint goes to disk, created with the first checkpoint.
+     */
+    private ExecutorService checkpointWriter;
+
+    /***
+     * The buffer the next checkpoint is copied into. There is only one, so a checkpoint is skipped if the previous one is still being written.
+     */
+    private Checkpoint spare;
+
+    /***
+     * The checkpoint being written, or null if none has been taken yet.
+     */
+    private Future<?> pendingCheckpoint;
+
+    /***
+     * The number of timesteps between looking for dried-up pages of the depth grid to free, set with -Dflow.evictEvery.
+     */
+    private long evictInterval = Math.max(1, Long.getLong("flow.evictEvery", 64));
+
+    /***
+     * The rolling statistics published over JMX, switched on with -Dflow.jmx=true, or null if they are not kept.
+     */
+    private FlowStats stats;
+
+    /***
+     * The total water drained at the edges when the last timestep ended, to work out the outflow of each timestep.
+     */
+    private long lastDrained;
+
+    /***
+     * Whether timesteps are held back until resume is called.
+     */
+    private boolean paused;
+
+    /***
+     * The least time between the starts of timesteps in nanoseconds, 0 to run at full speed.
+     */
+    private long minStepInterval;
+
+    /***
+     * When the next timestep may start under the step rate limit, from System.nanoTime.
+     */
+    private long nextStepAt;
+
+    /***
+     * The water sources asked for since the last timestep, added together at the start of the next one.
+     */
+    private final SourceQueue sources = new SourceQueue();
+
+    /***
+     * The number of timesteps in which no new point may start moving water, and none may drain off, for the water to count as steady. 0 to never look.
+     */
+    private long steadyWindow;
+
+    /***
+     * The timestep at which the water became steady, or -1 while it is still changing.
+     */
+    private volatile long steadyAt = -1;
+
+    /***
+     * The timestep the current steady window started at.
+     */
+    private long windowStart;
+
+    /***
+     * The number of points that had moved water when the current steady window started, or -1 if it has not been counted yet.
+     */
+    private long windowMoved = -1;
+
+    /***
+     * The lowest potential energy of the water at the end of any steady window since the water last changed, or infinity if none has ended yet.
+     */
+    private double windowEnergy = Double.POSITIVE_INFINITY;
+
+    /***
+     * The water emptied at the edges during the last timestep.
+     */
+    private long lastOutflow;
+
+    /***
+     * Creates the simulation engine for the given Terrain and Water objects.
+     * @param terrain an object which contains heights across the terrain
+     * @param water an object which contains depths of the water across the terrain
+     */
+    public FlowSim(Terrain terrain, Water water) {
+        land = terrain;
+        rivers = water;
+        if (Boolean.getBoolean("flow.jmx"))
+            stats = FlowStats.register(this);
+    }
+
+    /***
+     * Gets the Terrain object being simulated.
+     * @return an object which contains heights across the terrain
+     */
+    public Terrain getTerrain() {
+        return land;
+    }
+
+    /***
+     * Gets the Water object being simulated.
+     * @return an object which contains depths of the water across the terrain
+     */
+    public Water getWater() {
+        return rivers;
+    }
+
+    /***
+     * Gets the number of timesteps run since the last reset.
+     * @return the timestep count
+     */
+    public long getStepCount() {
+        return stepCount;
+    }
+
+    /***
+     * Gets the number of worker threads.
+     * @return the number of worker threads
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /***
+     * Sets the number of worker threads. Only takes effect if the simulation has not been started yet.
+     * @param threads the number of worker threads
+     */
+    public void setParallelism(int threads) {
+        if (flowThreads == null)
+            parallelism = Math.max(1, threads);
+    }
+
+    /***
+     * Switches deterministic timesteps on or off. Together with a fixed seed for the Water object, runs with the same water sources then give the same depths on any number of threads.
+     * Only takes effect if the simulation has not been started yet.
+     * @param on true to run timesteps in checkerboard phases
+     */
+    public void setDeterministic(boolean on) {
+        if (flowThreads == null)
+            deterministic = on;
+    }
+
+    /***
+     * Switches synchronous timesteps on or off. Every point then decides where its water goes from the depths at the start of the timestep, and the moves are gathered in a second pass, so the result never depends on the threads or the traversal order.
+     * Only takes effect if the simulation has not been started yet.
+     * @param on true for synchronous timesteps, false to move water in place in the traversal order
+     */
+    public void setSynchronous(boolean on) {
+        if (flowThreads == null)
+            synchronous = on;
+    }
+
+    /***
+     * Checks whether timesteps are synchronous.
+     * @return true if every point moves its water as if none had moved yet
+     */
+    public boolean isSynchronous() {
+        return synchronous;
+    }
+
+    /***
+     * Switches the mass-conservation check after every timestep on or off.
+     * @param check true to check that no water is lost or created
+     */
+    public void setCheckMass(boolean check) {
+        checkMass = check;
+    }
+
+    /***
+     * Sets how many frames per second are taken for display. Timesteps run at full speed in between and are never drawn.
+     * @param fps the number of frames per second
+     */
+    public void setFrameRate(int fps) {
+        frameInterval = 1_000_000_000L / Math.max(1, fps);
+    }
+
+    /***
+     * Switches taking frames every frame interval on or off, for a controller that decides itself when to take them, or takes none until it stops.
+     * @param on true for step to take frames at the frame rate, false to only take them through publishFrame
+     */
+    public void setAutoFrames(boolean on) {
+        autoFrames = on;
+    }
+
+    /***
+     * Sets the object told whenever a new frame is ready for display, and starts taking frames.
+     * @param listener called on the simulation thread after each frame is taken
+     */
+    public void setFrameListener(Runnable listener) {
+        rivers.trackChanges();
+        frameListener = listener;
+    }
+
+    /***
+     * Gets the number of bytes the workers allocated on the heap while working on tiles during the last timestep. The waits between phases are left out, as the phaser may allocate while a worker blocks, so this stays at zero unless the flow kernel itself allocates.
+     * @return the bytes allocated by all workers, or -1 if it cannot be measured or no timestep has run
+     */
+    public long getAllocatedPerStep() {
+        if (flowThreads == null)
+            return -1;
+        long total = 0;
+        for (FlowThread ft : flowThreads) {
+            long a = ft.getAllocated();
+            if (a < 0)
+                return -1;
+            total += a;
+        }
+        return total;
+    }
+
+    /***
+     * Creates and starts the worker threads if they do not exist yet. The workers wait on the phaser between timesteps rather than being recreated.
+     */
+    private void startWorkers() {
+        if (flowThreads != null)
+            return;
+        steps = new Phaser(parallelism + 1); // one party for each worker and one for the controller
+        schedule = synchronous ? new TileSchedule(rivers, false, 2) : new TileSchedule(rivers, deterministic); // a pass to plan the outflow and a pass to gather it
+        FlowPlan plan = synchronous ? new FlowPlan(rivers) : null;
+        flowThreads = new FlowThread[parallelism];
+        for (int i = 0; i<parallelism; i++) {
+            flowThreads[i] = new FlowThread(land, rivers, steps, schedule, plan);
+            flowThreads[i].setName("fThread" + i);
+        }
+        for (int i = 0; i<parallelism; i++) // separate for loop so that threads start as close to simultaneously as possible
+            flowThreads[i].start();
+    }
+
+    /***
+     * Looks for the water becoming steady: either a timestep in which no water moves, or a window of timesteps in which water only moves among points that had moved it before, none drains off and its potential energy reaches no new low, as when it sloshes back and forth in a basin.
+     * Once steady, step runs no more timesteps, so the workers stay parked and no frames are taken, until a water source is added or the water is reset.
+     * @param steps the number of timesteps in the window, 0 to stop looking
+     */
+    public synchronized void setSteadyWindow(long steps) {
+        steadyWindow = Math.max(0, steps);
+        if (steadyWindow > 0)
+            rivers.trackMoves();
+        else
+            wake();
+    }
+
+    /***
+     * Checks whether the water has become steady.
+     * @return true if no timesteps are being run until the water changes
+     */
+    public boolean isSteady() {
+        return steadyAt >= 0;
+    }
+
+    /***
+     * Gets the timestep at which the water became steady.
+     * @return the timestep count, or -1 if the water is still changing
+     */
+    public long getSteadyStep() {
+        return steadyAt;
+    }
+
+    /***
+     * Decides after a timestep whether the water has become steady, and if so takes a last frame of it.
+     */
+    private void checkSteady() {
+        long transfers = 0;
+        for (FlowThread ft : flowThreads)
+            transfers += ft.getTransfers();
+        if (lastOutflow != 0) { // still draining, so start the window again
+            windowStart = stepCount;
+            windowMoved = -1;
+            windowEnergy = Double.POSITIVE_INFINITY;
+            return;
+        }
+        if (transfers != 0) {
+            if (stepCount - windowStart < steadyWindow)
+                return;
+            long movedCount = rivers.getMovedCount(); // counted once a window, as it looks at the whole area
+            double energy = rivers.getEnergy(land); // still falling while water flows along paths it has taken before
+            boolean grew = movedCount != windowMoved, fell = energy < windowEnergy;
+            windowStart = stepCount;
+            windowMoved = movedCount;
+            windowEnergy = Math.min(windowEnergy, energy);
+            if (grew || fell)
+                return;
+        }
+        steadyAt = stepCount;
+        if (frameListener != null)
+            publishFrame();
+    }
+
+    /***
+     * Marks the water as changing again, so that step runs timesteps and looks for a new steady state from scratch.
+     */
+    private void wake() {
+        steadyAt = -1;
+        windowStart = stepCount;
+        windowMoved = -1;
+        windowEnergy = Double.POSITIVE_INFINITY;
+        rivers.clearMoves(); // water poured again may flow along paths it took before
+        notifyAll();
+    }
+
+    /***
+     * Adds the water sources asked for since the last timestep, waking the simulation if the water was steady.
+     * @return true if any sources were added
+     */
+    private boolean addSources() {
+        if (sources.drainTo(rivers) == 0)
+            return false;
+        wake();
+        return true;
+    }
+
+    /***
+     * Waits up to one frame interval for a water source while the water is steady, giving up the lock meanwhile. The simulation then costs next to nothing while idle.
+     * @return true if the water is no longer steady, so the timestep should run
+     */
+    private boolean awaitChange() {
+        try {
+            if (sources.isEmpty())
+                wait(Math.max(1, frameInterval / 1_000_000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (!sources.isEmpty())
+            wake();
+        return steadyAt < 0;
+    }
+
+    /***
+     * Gets the rolling statistics of the timesteps.
+     * @return the statistics, or null unless -Dflow.jmx=true
+     */
+    public FlowStats getStats() {
+        return stats;
+    }
+
+    /***
+     * Holds back timesteps until resume is called. A step that is called meanwhile waits, without keeping other calls such as makeSource out.
+     */
+    public synchronized void pause() {
+        paused = true;
+    }
+
+    /***
+     * Lets timesteps run again after pause.
+     */
+    public synchronized void resume() {
+        paused = false;
+        notifyAll();
+    }
+
+    /***
+     * Checks whether timesteps are held back.
+     * @return true if paused
+     */
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    /***
+     * Limits how many timesteps are run per second, by making step wait until it is time for the next one.
+     * @param stepsPerSecond the step rate limit, 0 to run at full speed
+     */
+    public synchronized void setMaxStepRate(double stepsPerSecond) {
+        minStepInterval = (stepsPerSecond > 0) ? (long) (1e9 / stepsPerSecond) : 0;
+        nextStepAt = 0;
+        notifyAll();
+    }
+
+    /***
+     * Gets the most timesteps run per second.
+     * @return the step rate limit, 0 if timesteps run at full speed
+     */
+    public synchronized double getMaxStepRate() {
+        return (minStepInterval > 0) ? 1e9 / minStepInterval : 0;
+    }
+
+    /***
+     * Waits while the simulation is paused or until the step rate limit allows the next timestep. Gives up the lock while waiting.
+     * While paused, it wakes up once a frame to add any water sources asked for meanwhile and show them.
+     * @return false if the thread was interrupted while waiting
+     */
+    private boolean awaitTurn() {
+        try {
+            while (true) {
+                if (paused) {
+                    wait(Math.max(1, frameInterval / 1_000_000));
+                    if (addSources())
+                        publishFrame();
+                    continue;
+                }
+                long wait = (minStepInterval > 0) ? nextStepAt - System.nanoTime() : 0;
+                if (wait <= 0)
+                    return true;
+                wait(wait / 1_000_000, (int) (wait % 1_000_000));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /***
+     * Runs a single timestep by releasing the workers and blocking until all of them have finished.
+     * Waits first while the simulation is paused or the step rate limit is reached, and returns without running a timestep if interrupted meanwhile.
+     * Once the water is steady, it instead waits up to one frame interval for a water source and returns without running a timestep if none comes.
+     */
+    public synchronized void step() {
+        if ((paused || minStepInterval > 0) && !awaitTurn())
+            return;
+        if (steadyAt >= 0 && !awaitChange())
+            return;
+        FlowStepEvent event = new FlowStepEvent();
+        event.begin();
+        long began = System.nanoTime();
+        nextStepAt = began + minStepInterval;
+        addSources();
+        startWorkers();
+        schedule.rewind();
+        steps.arriveAndAwaitAdvance(); // start of the timestep
+        for (int phase = 1; phase < schedule.getPhases(); phase++)
+            steps.arriveAndAwaitAdvance(); // between phases
+        steps.arriveAndAwaitAdvance(); // end of the timestep
+        stepCount++;
+        event.end();
+        measure(event, System.nanoTime() - began);
+        if (steadyWindow > 0)
+            checkSteady();
+        if (stepCount % evictInterval == 0)
+            rivers.evictDry(stepCount);
+        if (checkMass) {
+            long error = rivers.massError();
+            if (error != 0)
+                System.out.println("Water mass not conserved at timestep " + stepCount + ": off by " + error);
+        }
+        if (checkpointFile != null && stepCount % checkpointInterval == 0)
+            checkpoint(checkpointFile);
+        if (autoFrames && frameListener != null && System.nanoTime() - lastFrame >= frameInterval)
+            publishFrame();
+    }
+
+    /***
+     * Gathers the measurements of the workers for the timestep that just ended, and records them in the statistics and the Flight Recorder event.
+     * Does nothing beyond following the outflow when neither is switched on.
+     * @param event the event for the timestep, committed if a recording wants it
+     * @param wall the wall time of the timestep in nanoseconds
+     */
+    private void measure(FlowStepEvent event, long wall) {
+        long drained = rivers.getDrained();
+        long outflow = drained - lastDrained;
+        lastDrained = drained;
+        lastOutflow = outflow;
+        boolean commit = event.shouldCommit();
+        if (stats == null && !commit)
+            return;
+        long busyTotal = 0, busyMax = 0, visited = 0, transfers = 0;
+        for (FlowThread ft : flowThreads) {
+            long busy = ft.getBusyTime();
+            busyTotal += busy;
+            busyMax = Math.max(busyMax, busy);
+            visited += ft.getVisited();
+            transfers += ft.getTransfers();
+        }
+        long busyMean = busyTotal / flowThreads.length;
+        double imbalance = (busyMean > 0) ? (double) busyMax / busyMean : 1.0;
+        long mass = rivers.getInjected() - drained; // equals the total of the depths, without adding them up
+        if (stats != null)
+            stats.record(wall, busyMean, imbalance, visited, transfers, outflow, mass);
+        if (commit) {
+            event.step = stepCount;
+            event.workers = flowThreads.length;
+            event.meanBusyTime = busyMean;
+            event.maxBusyTime = busyMax;
+            event.imbalance = imbalance;
+            event.cellsVisited = visited;
+            event.transfers = transfers;
+            event.mass = mass;
+            event.outflow = outflow;
+            event.commit();
+        }
+    }
+
+    /***
+     * Takes a checkpoint automatically every so many timesteps.
+     * @param file the file to write the checkpoints to, each replacing the last, or null to stop taking them
+     * @param interval the number of timesteps between checkpoints
+     */
+    public synchronized void setCheckpointing(Path file, long interval) {
+        checkpointFile = file;
+        checkpointInterval = Math.max(1, interval);
+    }
+
+    /***
+     * Copies the state of the simulation now, between timesteps, and writes it to a file in the background. Timesteps only wait for the copy.
+     * If the previous checkpoint is still being written this one is skipped, as the buffer is still in use.
+     * @param file the file to write, compressed if its name ends in .gz
+     * @return true if the checkpoint was taken
+     */
+    public synchronized boolean checkpoint(Path file) {
+        if (pendingCheckpoint != null && !pendingCheckpoint.isDone()) {
+            System.out.println("Skipping checkpoint at timestep " + stepCount + ": the previous one is still being written");
+            return false;
+        }
+        if (checkpointWriter == null)
+            checkpointWriter = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "checkpointWriter");
+                t.setDaemon(true);
+                return t;
+            });
+        if (spare == null)
+            spare = new Checkpoint(rivers.getDimX(), rivers.getDimY());
+        Checkpoint cp = spare;
+        cp.capture(rivers, stepCount, deterministic, synchronous);
+        pendingCheckpoint = checkpointWriter.submit(() -> {
+            try {
+                cp.write(file);
+            } catch (IOException e) {
+                System.out.println("Unable to write checkpoint " + file);
+                e.printStackTrace();
+            }
+        });
+        return true;
+    }
+
+    /***
+     * Waits until the checkpoint being written, if any, is on disk.
+     */
+    public void awaitCheckpoint() {
+        Future<?> pending;
+        synchronized (this) {
+            pending = pendingCheckpoint;
+        }
+        if (pending == null)
+            return;
+        try {
+            pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (java.util.concurrent.ExecutionException e) {
+            e.printStackTrace(); // write failures are already reported by the writer
+        }
+    }
+
+    /***
+     * Carries on from a checkpoint: restores the Water object and the timestep count, and switches deterministic timesteps on if the checkpointed run used them.
+     * Deterministic runs then give exactly the depths they would have given without stopping. Timesteps must run deterministically to resume exactly, which can only be switched on before the simulation starts.
+     * @param file the checkpoint file to read
+     * @throws IOException if the file cannot be read or does not fit the Water object
+     */
+    public synchronized void restore(Path file) throws IOException {
+        Checkpoint cp = Checkpoint.read(file);
+        try {
+            cp.apply(rivers);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        sources.clear(); // they were asked for on the water being replaced
+        stepCount = cp.getStep();
+        lastDrained = rivers.getDrained();
+        wake();
+        if (cp.isDeterministic())
+            setDeterministic(true);
+        if (cp.isSynchronous())
+            setSynchronous(true);
+        publishFrame();
+    }
+
+    /***
+     * Takes a frame of the water for display now, between timesteps, and tells the frame listener.
+     */
+    public synchronized void publishFrame() {
+        Runnable listener = frameListener;
+        if (listener == null)
+            return;
+        lastFrame = System.nanoTime();
+        rivers.publishFrame(stepCount);
+        listener.run();
+    }
+
+    /***
+     * Asks for a water source, which is added at the start of the next timestep together with any others asked for meanwhile.
+     * Never waits for a timestep to finish, so it may be called from the Swing thread while the simulation runs. Call flushSources to add it when no timesteps are being run.
+     * @param x x-coordinate of the new water point
+     * @param y y-coordinate of the new water point
+     */
+    public void makeSource(int x, int y) {
+        sources.add(x, y);
+    }
+
+    /***
+     * Adds the water sources asked for since the last timestep now and takes a frame, so they are shown while no timesteps are being run.
+     */
+    public synchronized void flushSources() {
+        addSources();
+        publishFrame();
+    }
+
+    /***
+     * Resets the Water object and the timestep count.
+     */
+    public synchronized void reset() {
+        sources.clear();
+        rivers.reset();
+        stepCount = 0;
+        lastDrained = 0;
+        wake();
+        if (stats != null)
+            stats.clearWindow();
+        publishFrame();
+    }
+
+    /***
+     * Stops the worker threads and waits for a checkpoint still being written. The simulation cannot be stepped afterwards.
+     */
+    public void shutdown() {
+        if (steps != null)
+            steps.forceTermination();
+        ExecutorService writer;
+        synchronized (this) {
+            writer = checkpointWriter;
+        }
+        if (writer != null) {
+            writer.shutdown();
+            try {
+                writer.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,333 @@
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Locale;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/***
+ * Rolling statistics of the timesteps of a simulation, published as a JMX MBean together with controls to pause, resume and limit the step rate.
+ * Each timestep is recorded into fixed ring buffers, so recording allocates nothing. The averages and percentiles are worked out when they are asked for.
+ * @author Rea Keebine
+ * @version 1.0.0 Oct 18, 2026
+ */
+public class FlowStats implements FlowStatsMBean {
+
+    /***
+     * The measurements kept for every timestep, in the order of their ring buffers.
+     */
+    private enum Metric { STEP, BUSY, IMBALANCE, VISITED, TRANSFERS, OUTFLOW, MASS }
+
+    /***
+     * The number of simulations registered so far, used to give each its own MBean name.
+     */
+    private static int registered;
+
+    /***
+     * The simulation the statistics are for, which the controls act on.
+     */
+    private final FlowSim sim;
+
+    /***
+     * One ring buffer per metric, holding the last window timesteps. Times are kept in nanoseconds.
+     */
+    private final double[][] samples;
+
+    /***
+     * When each timestep in the window ended, from System.nanoTime.
+     */
+    private final long[] ended;
+
+    /***
+     * The next slot to write in the ring buffers.
+     */
+    private int next;
+
+    /***
+     * The number of timesteps in the window.
+     */
+    private int count;
+
+    /***
+     * Creates the statistics for a simulation without registering them.
+     * @param simulation the simulation the statistics are for
+     * @param window the number of timesteps to keep
+     */
+    public FlowStats(FlowSim simulation, int window) {
+        sim = simulation;
+        samples = new double[Metric.values().length][Math.max(1, window)];
+        ended = new long[Math.max(1, window)];
+    }
+
+    /***
+     * Creates the statistics for a simulation and registers them with the platform MBean server, keeping the last -Dflow.statsWindow timesteps (1000 by default).
+     * @param simulation the simulation the statistics are for
+     * @return the statistics, which are still recorded if they could not be registered
+     */
+    public static FlowStats register(FlowSim simulation) {
+        FlowStats stats = new FlowStats(simulation, Integer.getInteger("flow.statsWindow", 1000));
+        int n;
+        synchronized (FlowStats.class) {
+            n = registered++;
+        }
+        try {
+            ObjectName name = new ObjectName("flowapp:type=FlowStats" + (n > 0 ? ",name=sim" + n : ""));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(stats, name);
+        } catch (JMException e) {
+            System.out.println("Unable to register the simulation statistics: " + e.getMessage());
+        }
+        return stats;
+    }
+
+    /***
+     * Records the measurements of a timestep. Called by the simulation after every timestep.
+     * @param wall the wall time of the timestep in nanoseconds
+     * @param busy the mean busy time of the workers in nanoseconds
+     * @param imbalance the busy time of the busiest worker over the mean
+     * @param visited the number of wet points visited
+     * @param transfers the number of units of water moved between points
+     * @param outflow the water emptied at the edges
+     * @param mass the water on the area afterwards
+     */
+    synchronized void record(long wall, long busy, double imbalance, long visited, long transfers, long outflow, long mass) {
+        int i = next;
+        samples[Metric.STEP.ordinal()][i] = wall;
+        samples[Metric.BUSY.ordinal()][i] = busy;
+        samples[Metric.IMBALANCE.ordinal()][i] = imbalance;
+        samples[Metric.VISITED.ordinal()][i] = visited;
+        samples[Metric.TRANSFERS.ordinal()][i] = transfers;
+        samples[Metric.OUTFLOW.ordinal()][i] = outflow;
+        samples[Metric.MASS.ordinal()][i] = mass;
+        ended[i] = System.nanoTime();
+        next = (i + 1) % ended.length;
+        count = Math.min(count + 1, ended.length);
+    }
+
+    /***
+     * Works out the mean of a metric over the window.
+     * @param m the metric
+     * @return the mean, or NaN if the window is empty
+     */
+    private synchronized double mean(Metric m) {
+        if (count == 0)
+            return Double.NaN;
+        double total = 0;
+        for (int i = 0; i < count; i++)
+            total += samples[m.ordinal()][i];
+        return total / count;
+    }
+
+    /***
+     * Works out a percentile of a metric over the window, using the nearest rank.
+     * @param m the metric
+     * @param percent the percentile, between 0 and 100
+     * @return the percentile, or NaN if the window is empty
+     */
+    private double percentile(Metric m, double percent) {
+        double[] sorted;
+        synchronized (this) {
+            if (count == 0)
+                return Double.NaN;
+            sorted = Arrays.copyOf(samples[m.ordinal()], count);
+        }
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(Math.max(0, Math.min(100, percent)) / 100 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    /***
+     * Converts nanoseconds into milliseconds.
+     * @param nanos the time in nanoseconds
+     * @return the time in milliseconds
+     */
+    private static double millis(double nanos) {
+        return nanos / 1e6;
+    }
+
+    /***
+     * Gets the number of timesteps run since the last reset, from the simulation rather than the window.
+     * @return the timestep count
+     */
+    public long getStepCount() {
+        return sim.getStepCount();
+    }
+
+    /***
+     * Gets the number of timesteps currently in the window, which is less than its size until it has filled.
+     * @return the number of timesteps the statistics are over
+     */
+    public synchronized int getWindowSize() {
+        return count;
+    }
+
+    /***
+     * Gets the number of timesteps completed per second, from when the oldest and newest timesteps in the window ended.
+     * @return the simulation speed, 0 until two timesteps are in the window
+     */
+    public synchronized double getStepsPerSecond() {
+        if (count < 2)
+            return 0;
+        long last = ended[(next + ended.length - 1) % ended.length];
+        long first = ended[(count < ended.length) ? 0 : next];
+        return (count - 1) * 1e9 / Math.max(1, last - first);
+    }
+
+    /***
+     * Gets the mean wall time of a timestep over the window.
+     * @return the mean in milliseconds, or NaN if the window is empty
+     */
+    public double getStepMillisMean() {
+        return millis(mean(Metric.STEP));
+    }
+
+    /***
+     * Gets the median wall time of a timestep over the window.
+     * @return the median in milliseconds, or NaN if the window is empty
+     */
+    public double getStepMillisP50() {
+        return millis(percentile(Metric.STEP, 50));
+    }
+
+    /***
+     * Gets the 90th percentile of the wall time of a timestep over the window.
+     * @return the 90th percentile in milliseconds, or NaN if the window is empty
+     */
+    public double getStepMillisP90() {
+        return millis(percentile(Metric.STEP, 90));
+    }
+
+    /***
+     * Gets the 99th percentile of the wall time of a timestep over the window.
+     * @return the 99th percentile in milliseconds, or NaN if the window is empty
+     */
+    public double getStepMillisP99() {
+        return millis(percentile(Metric.STEP, 99));
+    }
+
+    /***
+     * Gets the longest wall time of a timestep in the window, as its 100th percentile.
+     * @return the maximum in milliseconds, or NaN if the window is empty
+     */
+    public double getStepMillisMax() {
+        return millis(percentile(Metric.STEP, 100));
+    }
+
+    /***
+     * Gets the mean time each worker spent working on tiles in a timestep, over the window.
+     * @return the mean in milliseconds, or NaN if the window is empty
+     */
+    public double getBusyMillisMean() {
+        return millis(mean(Metric.BUSY));
+    }
+
+    /***
+     * Gets the mean load imbalance over the window.
+     * @return the mean imbalance, 1 when the work is perfectly balanced, or NaN if the window is empty
+     */
+    public double getImbalanceMean() {
+        return mean(Metric.IMBALANCE);
+    }
+
+    /***
+     * Gets the 99th percentile of the load imbalance over the window.
+     * @return the 99th percentile of the imbalance, or NaN if the window is empty
+     */
+    public double getImbalanceP99() {
+        return percentile(Metric.IMBALANCE, 99);
+    }
+
+    /***
+     * Gets the mean number of wet points visited in a timestep over the window.
+     * @return the mean number of points visited, or NaN if the window is empty
+     */
+    public double getCellsVisitedMean() {
+        return mean(Metric.VISITED);
+    }
+
+    /***
+     * Gets the mean number of units of water moved between points in a timestep over the window.
+     * @return the mean number of transfers, or NaN if the window is empty
+     */
+    public double getTransfersMean() {
+        return mean(Metric.TRANSFERS);
+    }
+
+    /***
+     * Gets the mean amount of water emptied at the edges in a timestep over the window.
+     * @return the mean outflow, or NaN if the window is empty
+     */
+    public double getOutflowMean() {
+        return mean(Metric.OUTFLOW);
+    }
+
+    /***
+     * Gets the water on the area after the newest timestep in the window.
+     * @return the water mass, 0 if the window is empty
+     */
+    public synchronized long getWaterMass() {
+        return (count == 0) ? 0 : (long) samples[Metric.MASS.ordinal()][(next + ended.length - 1) % ended.length];
+    }
+
+    /***
+     * Gets a percentile of one of the measurements over the window by its name, in any case. Times are converted into milliseconds.
+     * @param metric one of step, busy, imbalance, visited, transfers, outflow or mass
+     * @param percent the percentile, between 0 and 100
+     * @return the percentile, or NaN if the window is empty
+     * @throws IllegalArgumentException if the metric is not known
+     */
+    public double percentile(String metric, double percent) {
+        Metric m;
+        try {
+            m = Metric.valueOf(metric.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("unknown metric " + metric + ", expected one of " + Arrays.toString(Metric.values()).toLowerCase(Locale.ROOT));
+        }
+        double p = percentile(m, percent);
+        return (m == Metric.STEP || m == Metric.BUSY) ? millis(p) : p;
+    }
+
+    /***
+     * Empties the window, so the statistics start again from the next timestep.
+     */
+    public synchronized void clearWindow() {
+        next = 0;
+        count = 0;
+    }
+
+    /***
+     * Checks whether the simulation is paused.
+     * @return true if timesteps are held back
+     */
+    public boolean isPaused() {
+        return sim.isPaused();
+    }
+
+    /***
+     * Pauses the simulation, holding back timesteps until resume is called.
+     */
+    public void pause() {
+        sim.pause();
+    }
+
+    /***
+     * Resumes the simulation after pause.
+     */
+    public void resume() {
+        sim.resume();
+    }
+
+    /***
+     * Gets the limit on the timesteps the simulation runs per second.
+     * @return the step rate limit, 0 if timesteps run at full speed
+     */
+    public double getMaxStepRate() {
+        return sim.getMaxStepRate();
+    }
+
+    /***
+     * Limits how many timesteps the simulation runs per second.
+     * @param stepsPerSecond the step rate limit, 0 to run at full speed
+     */
+    public void setMaxStepRate(double stepsPerSecond) {
+        sim.setMaxStepRate(stepsPerSecond);
+    }
+}
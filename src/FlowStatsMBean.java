@@ -0,0 +1,139 @@
+/***
+ * The management interface of the simulation statistics, shown in JConsole or JDK Mission Control under flowapp:type=FlowStats.
+ * Averages and percentiles are over the timesteps in the rolling window.
+ * @author Rea Keebine
+ * @version 1.0.0 Oct 18, 2026
+ */
+public interface FlowStatsMBean {
+
+    /***
+     * Gets the number of timesteps run since the last reset.
+     * @return the timestep count
+     */
+    long getStepCount();
+
+    /***
+     * Gets the number of timesteps currently in the rolling window.
+     * @return the number of timesteps the statistics are over
+     */
+    int getWindowSize();
+
+    /***
+     * Gets the number of timesteps completed per second over the window.
+     * @return the simulation speed
+     */
+    double getStepsPerSecond();
+
+    /***
+     * Gets the mean wall time of a timestep.
+     * @return the mean in milliseconds
+     */
+    double getStepMillisMean();
+
+    /***
+     * Gets the median wall time of a timestep.
+     * @return the median in milliseconds
+     */
+    double getStepMillisP50();
+
+    /***
+     * Gets the 90th percentile of the wall time of a timestep.
+     * @return the 90th percentile in milliseconds
+     */
+    double getStepMillisP90();
+
+    /***
+     * Gets the 99th percentile of the wall time of a timestep.
+     * @return the 99th percentile in milliseconds
+     */
+    double getStepMillisP99();
+
+    /***
+     * Gets the longest wall time of a timestep.
+     * @return the maximum in milliseconds
+     */
+    double getStepMillisMax();
+
+    /***
+     * Gets the mean time each worker spent working on tiles in a timestep.
+     * @return the mean in milliseconds
+     */
+    double getBusyMillisMean();
+
+    /***
+     * Gets the mean load imbalance, the busy time of the busiest worker over the mean busy time.
+     * @return the mean imbalance, 1 when the work is perfectly balanced
+     */
+    double getImbalanceMean();
+
+    /***
+     * Gets the 99th percentile of the load imbalance.
+     * @return the 99th percentile of the imbalance
+     */
+    double getImbalanceP99();
+
+    /***
+     * Gets the mean number of wet points visited in a timestep.
+     * @return the mean number of points visited
+     */
+    double getCellsVisitedMean();
+
+    /***
+     * Gets the mean number of units of water moved between points in a timestep.
+     * @return the mean number of transfers
+     */
+    double getTransfersMean();
+
+    /***
+     * Gets the mean amount of water emptied at the edges in a timestep.
+     * @return the mean outflow
+     */
+    double getOutflowMean();
+
+    /***
+     * Gets the water on the area after the last timestep.
+     * @return the water mass
+     */
+    long getWaterMass();
+
+    /***
+     * Gets a percentile of one of the measurements over the window.
+     * @param metric one of step, busy, imbalance, visited, transfers, outflow or mass; times are in milliseconds
+     * @param percent the percentile, between 0 and 100
+     * @return the percentile, or NaN if the window is empty
+     */
+    double percentile(String metric, double percent);
+
+    /***
+     * Empties the rolling window.
+     */
+    void clearWindow();
+
+    /***
+     * Checks whether the simulation is paused.
+     * @return true if timesteps are held back
+     */
+    boolean isPaused();
+
+    /***
+     * Holds back timesteps until resume is called.
+     */
+    void pause();
+
+    /***
+     * Lets timesteps run again after pause.
+     */
+    void resume();
+
+    /***
+     * Gets the most timesteps run per second.
+     * @return the step rate limit, 0 if timesteps run at full speed
+     */
+    double getMaxStepRate();
+
+    /***
+     * Limits how many timesteps are run per second.
+     * @param stepsPerSecond the step rate limit, 0 to run at full speed
+     */
+    void setMaxStepRate(double stepsPerSecond);
+}
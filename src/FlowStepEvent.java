@@ -0,0 +1,76 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/***
+ * A Flight Recorder event for one timestep of the simulation, recorded by the controller. The event lasts for the wall time of the timestep.
+ * Costs nothing unless a recording with the event enabled is running, so it is always emitted. Start one with -XX:StartFlightRecording or from JDK Mission Control.
+ * @author Rea Keebine
+ * @version 1.0.0 Oct 18, 2026
+ */
+@Name("flowapp.Step")
+@Label("Flow Timestep")
+@Category("FlowApp")
+@Description("One timestep of the water flow simulation")
+@StackTrace(false)
+public class FlowStepEvent extends jdk.jfr.Event {
+
+    /***
+     * The number of timesteps run, including this one.
+     */
+    @Label("Timestep")
+    long step;
+
+    /***
+     * The number of worker threads.
+     */
+    @Label("Workers")
+    int workers;
+
+    /***
+     * The mean busy time of the workers.
+     */
+    @Label("Mean Busy Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long meanBusyTime;
+
+    /***
+     * The busy time of the busiest worker.
+     */
+    @Label("Max Busy Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long maxBusyTime;
+
+    /***
+     * The busy time of the busiest worker over the mean busy time, 1 when the work is perfectly balanced.
+     */
+    @Label("Load Imbalance")
+    double imbalance;
+
+    /***
+     * The number of wet points visited by all workers.
+     */
+    @Label("Cells Visited")
+    long cellsVisited;
+
+    /***
+     * The number of units of water moved between points by all workers.
+     */
+    @Label("Transfers")
+    long transfers;
+
+    /***
+     * The water on the area after the timestep.
+     */
+    @Label("Water Mass")
+    long mass;
+
+    /***
+     * The water emptied at the edges during the timestep.
+     */
+    @Label("Edge Outflow")
+    long outflow;
+}
@@ -1,14 +1,13 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Phaser;
+
 /***
- * A single thread which performs the simulation work on one quarter of the area.
+ * A long-lived worker thread which performs the simulation work on tiles of the area every timestep.
  * @author Rea Keebine
  * @version 1.0.0 Sep 16, 2020
  */
 public class FlowThread extends Thread {
 
-    /***
-     * The number of which quarter of the area the thread should run on.
-     */
-    private int quarter;
 
     /***
      * An object which contains heights across the terrain.
@@ -21,93 +20,345 @@ public class FlowThread extends Thread {
     private Water rivers;
 
     /***
-     * Creates the thread using the quarter number, and the Terrain and Water objects.
-     * @param qrt the quarter the thread will run on
+     * Synchronizes the workers with the controller at the start and end of every timestep, and between its phases.
+     */
+    private Phaser steps;
+
+    /***
+     * The tiles to be claimed in the current timestep, shared by all the workers.
+     */
+    private TileSchedule schedule;
+
+    /***
+     * The outflow of every point for synchronous timesteps, shared by all the workers, or null to move water in place in the traversal order.
+     */
+    private FlowPlan plan;
+
+    /***
+     * A tile with fewer than one wet point in this many is planned point by point rather than by computing the surfaces of the whole tile.
+     */
+    private static final int SPARSE_TILE = Integer.getInteger("flow.sparseTile", 16);
+
+    /***
+     * Linear offsets of the eight neighbours of a point, in the order north-west, north, north-east, west, east, south-west, south, south-east.
+     */
+    private final int[] around;
+
+    /***
+     * The SIMD computation of the surfaces of a tile for synchronous timesteps, or null to use the scalar search. Switched on with -Dflow.simd=true when the Vector API is available.
+     */
+    private final VectorFlow vector;
+
+    /***
+     * The surfaces of the tile being planned, computed by vector. Null unless vector is used.
+     */
+    private final float[] block;
+
+    /***
+     * The positions of the wet points of the tile being planned, collected before deciding whether to compute the surfaces of the whole tile. Null unless vector is used.
+     */
+    private final int[] wetAt;
+
+    /***
+     * The number of bytes this thread allocated while working on tiles during its last timestep, not counting the waits between phases, or -1 if the JVM cannot measure it.
+     */
+    private volatile long allocated = -1;
+
+    /***
+     * The time this thread spent working on tiles during its last timestep, in nanoseconds, not counting the waits between phases.
+     * Only written by this thread while the timestep runs, and read by the controller after the timestep has ended.
+     */
+    private long busy;
+
+    /***
+     * The number of points this thread visited during its last timestep.
+     */
+    private long visited;
+
+    /***
+     * The number of units of water this thread moved between points during its last timestep.
+     */
+    private long transfers;
+
+    /***
+     * Used to measure per-thread allocation, or null if the JVM does not support it.
+     */
+    private static final com.sun.management.ThreadMXBean ALLOC_BEAN = allocationBean();
+
+    /***
+     * Creates the thread using the Terrain and Water objects, and the objects it shares with the other workers.
      * @param terrain an object which contains heights across the terrain
      * @param water an object which contains depths of the water across the terrain
+     * @param phaser the phaser shared with the controller, with one party registered for this thread
+     * @param tiles the schedule the workers claim tiles from, rewound by the controller before each timestep
      */
-    public FlowThread (int qrt, Terrain terrain, Water water) {
-        quarter = qrt;
+    public FlowThread (Terrain terrain, Water water, Phaser phaser, TileSchedule tiles) {
+        this(terrain, water, phaser, tiles, null);
+    }
+
+    /***
+     * Creates the thread for synchronous timesteps, in which the schedule has two passes: the first plans the outflow of every point and the second gathers it.
+     * @param terrain an object which contains heights across the terrain
+     * @param water an object which contains depths of the water across the terrain
+     * @param phaser the phaser shared with the controller, with one party registered for this thread
+     * @param tiles the schedule the workers claim tiles from, rewound by the controller before each timestep
+     * @param outflow the plan shared with the other workers, or null to move water in place
+     */
+    public FlowThread (Terrain terrain, Water water, Phaser phaser, TileSchedule tiles, FlowPlan outflow) {
         land = terrain;
+        plan = outflow;
         rivers = water;
+        steps = phaser;
+        schedule = tiles;
+        int dimx = water.getDimX();
+        around = new int[]{-dimx-1, -dimx, -dimx+1,
+                           -1,             1,
+                           dimx-1,  dimx,  dimx+1};
+        vector = (outflow != null && Boolean.getBoolean("flow.simd")) ? simd(terrain, water) : null; // only synchronous timesteps can use surfaces computed ahead
+        block = (vector != null) ? new float[vector.blockSize()] : null;
+        wetAt = (vector != null) ? new int[water.getTileSize()*water.getTileSize()] : null;
+        setDaemon(true);
+    }
+
+    /***
+     * Creates the SIMD computation of surfaces, falling back to the scalar search if the Vector API module was not added to the JVM.
+     * @param terrain an object which contains heights across the terrain
+     * @param water an object which contains depths of the water across the terrain
+     * @return the SIMD computation, or null if it cannot be used
+     */
+    private static VectorFlow simd(Terrain terrain, Water water) {
+        try {
+            return VectorFlow.create(terrain, water);
+        } catch (LinkageError e) { // VectorFlow itself cannot be loaded
+            return null;
+        }
+    }
+
+    /***
+     * Finds the neighbour of a point with the lowest water surface, if it is lower than the surface at the point. The point must not be on the edge.
+     * @param idx linear index of point
+     * @param surfCurr the water surface at the point
+     * @return the linear index of the lowest neighbour, or -1 if no neighbour is strictly lower
+     */
+    private int lowest(int idx, float surfCurr) {
+        float minValue = 1000000.0f;
+        int lowest = -1; // the linear index of the lowest surface
+
+        // find the lowest surrounding surface, the search starts from the north neighbour so north-west is only a fallback
+        for (int n = 1; n < 8; n++) {
+            int nb = idx + around[n];
+            float surf = rivers.getDepth(nb)*0.01f + land.getHeight(nb);
+            if (surf < minValue) {
+                minValue = surf;
+                lowest = nb;
+            }
+        }
+        if (lowest < 0) {
+            lowest = idx + around[0];
+            minValue = rivers.getDepth(lowest)*0.01f + land.getHeight(lowest);
+        }
+        return (minValue < surfCurr) ? lowest : -1; // must be strictly lower
+    }
+
+    /***
+     * Gets whether this thread computes the surfaces of its tiles with SIMD instructions, which only synchronous timesteps do.
+     * @return true if the Vector API computation is used
+     */
+    public boolean isVectorized() {
+        return vector != null;
+    }
+
+    /***
+     * Finds the bean that reports the bytes allocated by each thread.
+     * @return the allocation bean, or null if allocation measurement is unavailable
+     */
+    private static com.sun.management.ThreadMXBean allocationBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+            if (sunBean.isThreadAllocatedMemorySupported() && sunBean.isThreadAllocatedMemoryEnabled())
+                return sunBean;
+        }
+        return null;
+    }
+
+    /***
+     * Gets the number of bytes this thread allocated on the heap while working on tiles during its last timestep, leaving out the waits between phases.
+     * @return the bytes allocated, or -1 if the JVM cannot measure it
+     */
+    public long getAllocated() {
+        return allocated;
+    }
+
+    /***
+     * Gets the time this thread spent working on tiles during its last timestep.
+     * @return the busy time in nanoseconds
+     */
+    public long getBusyTime() {
+        return busy;
     }
 
     /***
-     * Gets one quarter of the permuted area and runs the water flow simulation over that area.
+     * Gets the number of points this thread visited during its last timestep.
+     * @return the number of wet points visited
+     */
+    public long getVisited() {
+        return visited;
+    }
+
+    /***
+     * Gets the number of units of water this thread moved between points during its last timestep.
+     * @return the number of transfers
+     */
+    public long getTransfers() {
+        return transfers;
+    }
+
+    /***
+     * Waits for each timestep to start, runs the water flow simulation over the tiles it claims and reports the timestep as complete. Stops once the phaser is terminated.
      */
     public void run() {
-        int limit = rivers.dim()/4;
-        int sectionStart = limit*quarter; //[..
-        int sectionEnd = limit*(quarter+1); //..)
-        waterFlow(sectionStart, sectionEnd);
+        while (steps.arriveAndAwaitAdvance() >= 0) { // wait for the controller to start the next timestep
+            FlowWorkerEvent event = new FlowWorkerEvent();
+            event.begin();
+            busy = 0;
+            visited = 0;
+            transfers = 0;
+            boolean running = flowTiles();
+            event.end();
+            if (event.shouldCommit()) {
+                event.busyTime = busy;
+                event.cellsVisited = visited;
+                event.transfers = transfers;
+                event.commit();
+            }
+            if (!running || steps.arriveAndAwaitAdvance() < 0) // report the timestep as complete
+                return;
+        }
+    }
+
+    /***
+     * Keeps claiming the next unprocessed tile and running the water flow simulation over it until every tile of the timestep is taken, so faster threads pick up the work of slower ones.
+     * With several phases, waits for the other workers at the end of every phase but the last.
+     * @return false if the phaser was terminated while waiting
+     */
+    private boolean flowTiles() {
+        long spent = 0;
+        for (int phase = 0; phase < schedule.getPhases(); phase++) {
+            if (phase > 0 && steps.arriveAndAwaitAdvance() < 0)
+                return false;
+            long before = (ALLOC_BEAN != null) ? ALLOC_BEAN.getThreadAllocatedBytes(getId()) : 0; // read after the barrier, as the phaser may allocate while waiting
+            long began = System.nanoTime();
+            if (plan == null)
+                for (int t = schedule.claim(phase); t >= 0; t = schedule.claim(phase))
+                    waterFlow(rivers.getTileStart(t), rivers.getTileEnd(t));
+            else if (phase == 0)
+                for (int t = schedule.claim(phase); t >= 0; t = schedule.claim(phase))
+                    planFlow(t);
+            else
+                for (int t = schedule.claim(phase); t >= 0; t = schedule.claim(phase))
+                    transfers += plan.gather(t);
+            busy += System.nanoTime() - began;
+            if (ALLOC_BEAN != null)
+                spent += ALLOC_BEAN.getThreadAllocatedBytes(getId()) - before;
+        }
+        if (ALLOC_BEAN != null)
+            allocated = spent;
+        return true;
     }
 
     /***
      * The water flow simulation. Compares the water surface at each point in the area to the surrounding points. If the surface is lower in the surrounds, transfers one block of water to that point. Also empties the water in the edge points.
+     * Only the wet points are visited, in the order of the permutation, so the cost of a timestep grows with the water rather than the area. Dry points would not move any water anyway.
+     * Works on linear indices with the precomputed neighbour offsets, so no objects are allocated per point.
+     * Water is moved with atomic updates on the Water object, so threads working on neighbouring points never lose or create water.
+     * @param start first position in the traversal order to visit
+     * @param end position in the traversal order after the last one to visit
      */
-    public synchronized void waterFlow (int start, int end) {
-        for (int idx = start; idx < end; idx++) {
-            int[] loc = rivers.getPermute(idx);
-            int x = loc[0];
-            int y = loc[1];
-            if (rivers.getDepth(x,y) >0) { // if there is water here
-                if ((x > 0) && (y > 0) && (x < rivers.getDimX() - 1) && (y < rivers.getDimY() - 1)) { // and if we are not at the edge
-                    float surfCurr = rivers.getDepth(x,y)*0.01f + land.getHeight(x,y); // calculate the current water surface
-                    int[] lowest = new int[2]; // the co-ordinates of the lowest surface
-                    int idxLowArnd = 0; // the index of the lowest surface in the surfAround array
-                    float minValue = 1000000.0f;
-
-                    // create an array with the water surfaces around the current position
-                    float[] surfAround = {rivers.getDepth(x-1,y-1)*0.01f + land.getHeight(x-1,y-1),
-                                          rivers.getDepth(x,y-1)*0.01f + land.getHeight(x,y-1),
-                                          rivers.getDepth(x+1,y-1)*0.01f + land.getHeight(x+1,y-1),
-                                          rivers.getDepth(x-1,y)*0.01f + land.getHeight(x-1,y),
-                                          rivers.getDepth(x+1,y)*0.01f + land.getHeight(x+1,y),
-                                          rivers.getDepth(x-1,y+1)*0.01f + land.getHeight(x-1,y+1),
-                                          rivers.getDepth(x,y+1)*0.01f + land.getHeight(x,y+1),
-                                          rivers.getDepth(x+1,y+1)*0.01f + land.getHeight(x+1,y+1) };
-
-                    for (int i = 1; i < 8; i++) // loop through the surfAround array and find the lowest surface
-                        if (surfAround[i] < minValue) {
-                            minValue = surfAround[i];
-                            idxLowArnd = i;
-                        }
-
-                    if (surfAround[idxLowArnd] < surfCurr) { // must be strictly lower
-                        switch (idxLowArnd) { // get the actual co-ordinates of the lowest surface based on the surfAround array
-                            case 0:
-                                lowest = new int[]{x - 1, y - 1};
-                                break;
-                            case 1:
-                                lowest = new int[]{x, y - 1};
-                                break;
-                            case 2:
-                                lowest = new int[]{x + 1, y - 1};
-                                break;
-                            case 3:
-                                lowest = new int[]{x - 1, y};
-                                break;
-                            case 4:
-                                lowest = new int[]{x + 1, y};
-                                break;
-                            case 5:
-                                lowest = new int[]{x - 1, y + 1};
-                                break;
-                            case 6:
-                                lowest = new int[]{x, y + 1};
-                                break;
-                            case 7:
-                                lowest = new int[]{x + 1, y + 1};
-                                break;
-                        }
-
-                        // transfer the water
-                        rivers.setDepth(x,y, rivers.getDepth(x,y) - 1);
-                        rivers.setDepth(lowest[0],lowest[1], rivers.getDepth(lowest[0],lowest[1]) + 1);
-                    }
-                } else if ((x == 0) || (y == 0) || (x == rivers.getDimX() - 1) || (y == rivers.getDimY() - 1)) //if we are at the edge
-                    rivers.setDepth(x,y,0);
+    public void waterFlow (int start, int end) {
+        int dimx = rivers.getDimX();
+        int dimy = rivers.getDimY();
+        int seen = 0, moved = 0; // counted locally and added once, for the instrumentation
+        for (int i = rivers.nextWet(start, end); i < end; i = rivers.nextWet(i + 1, end)) {
+            seen++;
+            int idx = rivers.getPermuteIndex(i);
+            int d = rivers.getDepth(idx);
+            if (d > 0) { // if there is water here
+                int x = idx % dimx;
+                int y = idx / dimx;
+                if ((x > 0) && (y > 0) && (x < dimx - 1) && (y < dimy - 1)) { // and if we are not at the edge
+                    float surfCurr = d*0.01f + land.getHeight(idx); // calculate the current water surface
+                    int lowest = lowest(idx, surfCurr);
+                    if (lowest >= 0 && rivers.transfer(idx, lowest)) // transfer the water
+                        moved++;
+                } else //if we are at the edge
+                    rivers.drain(idx);
             }
         }
+        visited += seen;
+        transfers += moved;
+    }
+
+    /***
+     * The first pass of a synchronous timestep over a tile. Finds the neighbour each wet point would send its water to, from the depths at the start of the timestep, and records it in the plan without moving any water.
+     * Uses the same search for the lowest neighbour as waterFlow, so water takes the same paths.
+     * @param t the tile number
+     */
+    private void planFlow(int t) {
+        plan.clear(t);
+        if (vector != null) {
+            planTile(t);
+            return;
+        }
+        int dimx = rivers.getDimX();
+        int dimy = rivers.getDimY();
+        int seen = 0;
+        for (int i = rivers.nextWet(rivers.getTileStart(t), rivers.getTileEnd(t)); i < rivers.getTileEnd(t); i = rivers.nextWet(i + 1, rivers.getTileEnd(t))) {
+            seen++;
+            int idx = rivers.getPermuteIndex(i);
+            int x = idx % dimx;
+            int y = idx / dimx;
+            if ((x > 0) && (y > 0) && (x < dimx - 1) && (y < dimy - 1)) {
+                float surfCurr = rivers.getDepth(idx)*0.01f + land.getHeight(idx);
+                int lowest = lowest(idx, surfCurr);
+                if (lowest >= 0)
+                    plan.send(t, idx, plan.directionTo(idx, lowest));
+            } else
+                plan.drains(t, idx);
+        }
+        visited += seen;
+    }
+
+    /***
+     * The first pass of a synchronous timestep over a tile with the SIMD computation. Once enough of the tile is wet, the surfaces of the whole tile are computed row by row and every wet point searches its neighbours in them; a tile with only a few wet points is searched point by point, as computing its surfaces would cost more.
+     * Chooses the same neighbours as planFlow without SIMD.
+     * @param t the tile number
+     */
+    private void planTile(int t) {
+        int dimx = rivers.getDimX();
+        int dimy = rivers.getDimY();
+        int end = rivers.getTileEnd(t), count = 0;
+        for (int i = rivers.nextWet(rivers.getTileStart(t), end); i < end; i = rivers.nextWet(i + 1, end))
+            wetAt[count++] = i;
+        boolean whole = count*SPARSE_TILE >= rivers.getTileWidth(t)*rivers.getTileHeight(t);
+        if (whole)
+            vector.surfaces(t, block);
+        for (int k = 0; k < count; k++) {
+            int idx = rivers.getPermuteIndex(wetAt[k]);
+            int x = idx % dimx;
+            int y = idx / dimx;
+            if ((x > 0) && (y > 0) && (x < dimx - 1) && (y < dimy - 1)) {
+                int lowest;
+                if (whole) {
+                    int n = vector.lowest(block, vector.blockIndex(t, idx));
+                    lowest = (n < 0) ? -1 : idx + around[n];
+                } else
+                    lowest = lowest(idx, rivers.getDepth(idx)*0.01f + land.getHeight(idx));
+                if (lowest >= 0)
+                    plan.send(t, idx, plan.directionTo(idx, lowest));
+            } else
+                plan.drains(t, idx);
+        }
+        visited += count;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,39 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/***
+ * A Flight Recorder event for the work one worker thread did in one timestep. The event lasts from the start of the timestep until the thread has claimed its last tile, and is recorded on the worker's own thread.
+ * It records the thread's busy time, the wet points it visited and the water it moved, so that the events of one timestep show how evenly the tiles were shared out; FlowStepEvent sums them over all workers.
+ * @author Rea Keebine
+ * @version 1.0.0 Oct 18, 2026
+ */
+@Name("flowapp.Worker")
+@Label("Flow Worker Timestep")
+@Category("FlowApp")
+@Description("The work one worker thread did in one timestep")
+@StackTrace(false)
+public class FlowWorkerEvent extends jdk.jfr.Event {
+
+    /***
+     * The time spent working on tiles, not counting the waits between phases.
+     */
+    @Label("Busy Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long busyTime;
+
+    /***
+     * The number of wet points visited.
+     */
+    @Label("Cells Visited")
+    long cellsVisited;
+
+    /***
+     * The number of units of water moved between points.
+     */
+    @Label("Transfers")
+    long transfers;
+}
@@ -0,0 +1,350 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/***
+ * The depth grid of a Water object held outside the Java heap, either in native memory or in a memory-mapped file.
+ * It is cut into the same pages as the grid on the heap, and gives the same atomic access to single depths, so Water behaves the same with either. The garbage collector never copies or scans the depths, and the heap only has to be sized for everything else.
+ * Pages in native memory are direct buffers, so together they are limited by -XX:MaxDirectMemorySize, which defaults to the maximum heap size.
+ * The memory of a direct buffer is only returned once the garbage collector finds the buffer unreachable, so a page that dries up is not released but kept for the next page water reaches. Native memory therefore stays at the most pages ever wet at once until the grid itself is dropped, and water coming back allocates nothing.
+ * A mapped file holds the whole grid, little-endian like the binary heightfields, after a header of the magic bytes, dimx and dimy. Other processes mapping or reading the file see the depths as the simulation changes them.
+ * @author Rea Keebine
+ * @version 1.0.0 Oct 18, 2026
+ */
+public class OffHeapDepths {
+
+    /***
+     * The first bytes of a mapped depth file.
+     */
+    static final byte[] MAGIC = {'W', 'A', 'T', 'R'};
+
+    /***
+     * The size of the header of a mapped depth file in bytes: the magic bytes, dimx and dimy.
+     */
+    static final int HEADER = MAGIC.length + 8;
+
+    /***
+     * The base two logarithm of the number of depths mapped at a time from a file. A single mapping is limited to 2GB.
+     */
+    private static final int MAP_SHIFT = 28;
+
+    /***
+     * Gives atomic access to the depths in a page, as little-endian ints at byte offsets.
+     */
+    private static final VarHandle DEPTH = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /***
+     * Gives atomic access to the elements of pages, so that two threads reaching a dry page at once allocate it only once.
+     */
+    private static final VarHandle PAGES = MethodHandles.arrayElementVarHandle(ByteBuffer[].class);
+
+    /***
+     * The pages of the grid. In native memory a page is only allocated while it may hold water, and null otherwise; in a file every page is a slice of the mapping.
+     */
+    private ByteBuffer[] pages;
+
+    /***
+     * Full-sized pages of native memory taken out of the grid when they dried up, all zero, kept for reuse. The first spareCount are in use.
+     */
+    private ByteBuffer[] spare;
+
+    /***
+     * The number of pages kept in spare.
+     */
+    private int spareCount;
+
+    /***
+     * The total number of depths.
+     */
+    private int size;
+
+    /***
+     * The base two logarithm of the number of depths in a page.
+     */
+    private int pageShift;
+
+    /***
+     * Whether the pages are slices of a mapped file rather than native memory.
+     */
+    private boolean mapped;
+
+    /***
+     * Creates an empty grid in native memory. Pages are allocated as water reaches them.
+     * @param dim the number of points
+     * @param shift the base two logarithm of the number of points in a page
+     */
+    public OffHeapDepths(int dim, int shift) {
+        size = dim;
+        pageShift = shift;
+        pages = new ByteBuffer[(int) (((long) dim + (1 << shift) - 1) >>> shift)];
+        spare = new ByteBuffer[pages.length];
+    }
+
+    /***
+     * Creates an empty grid in a memory-mapped file, replacing anything already in the file. The file stays mapped for as long as the grid is in use.
+     * @param dX x-dimension of the area
+     * @param dY y-dimension of the area
+     * @param shift the base two logarithm of the number of points in a page, at most 28
+     * @param file the file to map
+     * @throws IOException if the file cannot be created or mapped
+     */
+    public OffHeapDepths(int dX, int dY, int shift, Path file) throws IOException {
+        this(dX*dY, shift);
+        mapped = true;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+            header.put(MAGIC).putInt(dX).putInt(dY).flip();
+            while (header.hasRemaining())
+                ch.write(header);
+            int chunk = 1 << MAP_SHIFT;
+            for (int pos = 0; pos < size; pos += chunk) { // map in chunks as a single mapping is limited to 2GB, growing the file with zeros
+                int count = Math.min(chunk, size - pos);
+                ByteBuffer m = ch.map(FileChannel.MapMode.READ_WRITE, HEADER + 4L*pos, 4L*count); // stays valid after the channel is closed
+                for (int off = 0; off < count; off += 1 << shift) // a chunk holds whole pages, as pages are no larger than chunks
+                    pages[(pos + off) >>> shift] = m.slice(4*off, 4*Math.min(1 << shift, count - off));
+            }
+        }
+    }
+
+    /***
+     * Checks whether the depths are in a mapped file rather than native memory.
+     * @return true if the depths are in a mapped file
+     */
+    public boolean isMapped() {
+        return mapped;
+    }
+
+    /***
+     * Gets the byte offset of a point within its page.
+     * @param idx linear index of point
+     * @return the byte offset
+     */
+    private int offset(int idx) {
+        return (idx & ((1 << pageShift) - 1)) << 2;
+    }
+
+    /***
+     * Gets the page holding a point, bringing in a spare page or allocating one if water is reaching it for the first time since it was freed.
+     * @param idx linear index of point
+     * @return the page
+     */
+    private ByteBuffer page(int idx) {
+        int k = idx >>> pageShift;
+        ByteBuffer p = (ByteBuffer) PAGES.getAcquire(pages, k);
+        if (p == null) {
+            int capacity = 4*Math.min(1 << pageShift, size - (k << pageShift));
+            ByteBuffer fresh = (capacity == 4 << pageShift) ? takeSpare() : null;
+            if (fresh == null)
+                fresh = ByteBuffer.allocateDirect(capacity);
+            if (PAGES.compareAndSet(pages, k, null, fresh))
+                p = fresh;
+            else { // another thread brought it in first
+                p = (ByteBuffer) PAGES.getAcquire(pages, k);
+                if (fresh.capacity() == 4 << pageShift)
+                    putSpare(fresh);
+            }
+        }
+        return p;
+    }
+
+    /***
+     * Takes a page from the spare pages.
+     * @return a zeroed full-sized page, or null if there are none
+     */
+    private synchronized ByteBuffer takeSpare() {
+        if (spareCount == 0)
+            return null;
+        ByteBuffer p = spare[--spareCount];
+        spare[spareCount] = null;
+        return p;
+    }
+
+    /***
+     * Keeps a zeroed page for reuse, unless it is not full-sized.
+     * @param p the page
+     */
+    private synchronized void putSpare(ByteBuffer p) {
+        if (p.capacity() == 4 << pageShift && spareCount < spare.length)
+            spare[spareCount++] = p;
+    }
+
+    /***
+     * Returns the depth at a point.
+     * @param idx linear index of point
+     * @return the depth
+     */
+    int get(int idx) {
+        ByteBuffer p = pages[idx >>> pageShift];
+        return (p == null) ? 0 : (int) DEPTH.get(p, offset(idx));
+    }
+
+    /***
+     * Returns the depth at a point with volatile semantics, so that water moved there by another thread is seen.
+     * @param idx linear index of point
+     * @return the depth
+     */
+    int getVolatile(int idx) {
+        ByteBuffer p = (ByteBuffer) PAGES.getAcquire(pages, idx >>> pageShift);
+        return (p == null) ? 0 : (int) DEPTH.getVolatile(p, offset(idx));
+    }
+
+    /***
+     * Sets the depth at a point.
+     * @param idx linear index of point
+     * @param d the new depth
+     */
+    void set(int idx, int d) {
+        ByteBuffer p = (d > 0) ? page(idx) : pages[idx >>> pageShift];
+        if (p != null)
+            DEPTH.set(p, offset(idx), d);
+    }
+
+    /***
+     * Atomically takes one unit of water from a point, unless it is already dry.
+     * @param idx linear index of point
+     * @return the depth before the unit was taken, 0 if nothing was taken
+     */
+    int takeUnit(int idx) {
+        ByteBuffer p = pages[idx >>> pageShift];
+        if (p == null)
+            return 0;
+        int off = offset(idx), d;
+        do {
+            d = (int) DEPTH.getVolatile(p, off);
+            if (d <= 0)
+                return 0;
+        } while (!DEPTH.compareAndSet(p, off, d, d - 1));
+        return d;
+    }
+
+    /***
+     * Atomically adds water to a point.
+     * @param idx linear index of point
+     * @param amount the water to add
+     * @return the depth before it was added
+     */
+    int add(int idx, int amount) {
+        return (int) DEPTH.getAndAdd(page(idx), offset(idx), amount);
+    }
+
+    /***
+     * Atomically empties a point.
+     * @param idx linear index of point
+     * @return the depth before it was emptied
+     */
+    int empty(int idx) {
+        ByteBuffer p = pages[idx >>> pageShift];
+        return (p == null) ? 0 : (int) DEPTH.getAndSet(p, offset(idx), 0);
+    }
+
+    /***
+     * Sums the depths over the whole grid.
+     * @return the total amount of water
+     */
+    long sum() {
+        long total = 0;
+        for (ByteBuffer p : pages)
+            if (p != null)
+                for (int off = 0; off < p.capacity(); off += 4)
+                    total += (int) DEPTH.get(p, off);
+        return total;
+    }
+
+    /***
+     * Copies part of the grid into the same positions of an array.
+     * @param into the array to copy the depths into, in row order
+     * @param start the linear index of the first point to copy
+     * @param len the number of points to copy
+     */
+    void copy(int[] into, int start, int len) {
+        while (len > 0) {
+            ByteBuffer p = pages[start >>> pageShift];
+            int off = offset(start) >> 2, n = Math.min(len, (1 << pageShift) - off);
+            if (p != null)
+                for (int i = 0; i < n; i++)
+                    into[start + i] = (int) DEPTH.get(p, (off + i) << 2);
+            else
+                java.util.Arrays.fill(into, start, start + n, 0);
+            start += n;
+            len -= n;
+        }
+    }
+
+    /***
+     * Gets the number of pages the grid is cut into.
+     * @return the number of pages
+     */
+    int getPageCount() {
+        return pages.length;
+    }
+
+    /***
+     * Checks whether a page is allocated.
+     * @param k the page number
+     * @return true if the page is in memory
+     */
+    boolean isResident(int k) {
+        return pages[k] != null;
+    }
+
+    /***
+     * Checks whether any point of a page holds water.
+     * @param k the page number
+     * @return true if some depth is positive
+     */
+    boolean holdsWater(int k) {
+        ByteBuffer p = pages[k];
+        return p != null && holdsWater(p);
+    }
+
+    /***
+     * Takes a dry page of native memory out of the grid and keeps it as a spare, so that its memory is reused rather than left for the garbage collector to release. Pages of a mapped file stay in place, as the operating system already drops the parts of the file not in use.
+     * Must not be called while a timestep is running.
+     * @param k the page number
+     */
+    void free(int k) {
+        if (mapped || pages[k] == null)
+            return;
+        putSpare(pages[k]);
+        pages[k] = null;
+    }
+
+    /***
+     * Sets every depth to zero, taking the pages of native memory out of the grid as spares and clearing those of a mapped file.
+     */
+    void clear() {
+        byte[] zeros = null;
+        for (int k = 0; k < pages.length; k++) {
+            ByteBuffer p = pages[k];
+            if (p == null)
+                continue;
+            if (holdsWater(p)) {
+                if (zeros == null)
+                    zeros = new byte[1 << 16];
+                ByteBuffer b = p.duplicate();
+                while (b.hasRemaining())
+                    b.put(zeros, 0, Math.min(zeros.length, b.remaining()));
+            }
+            if (!mapped)
+                free(k);
+        }
+    }
+
+    /***
+     * Checks whether any point of a page holds water.
+     * @param p the page
+     * @return true if some depth is positive
+     */
+    private static boolean holdsWater(ByteBuffer p) {
+        int end = p.capacity() & ~7;
+        for (int off = 0; off < end; off += 8) // two depths at a time, as any water makes the pair non-zero
+            if (p.getLong(off) != 0)
+                return true;
+        return end < p.capacity() && p.getInt(end) != 0;
+    }
+}
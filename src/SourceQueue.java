@@ -0,0 +1,154 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+/***
+ * Water sources waiting to be added, collected from any thread without locking and added together between timesteps.
+ * Each source is pushed onto a lock-free stack, so asking for one never waits for a timestep to finish. The whole stack is taken at once, and the squares of all its sources are merged row by row into runs of points that get the same amount of water, so every point is written once however many squares cover it.
+ * @author Rea Keebine
+ * @version 1.0.0 Oct 18, 2026
+ */
+public class SourceQueue {
+
+    /***
+     * A source waiting to be added, linked to the sources pushed before it.
+     */
+    private static final class Source {
+
+        /***
+         * Coordinates of the centre of the square of new water.
+         */
+        final int x, y;
+
+        /***
+         * The source pushed before this one, or null if this is the first waiting.
+         */
+        final Source next;
+
+        /***
+         * Creates a source to push onto the stack.
+         * @param x x-coordinate of centre of the square of new water
+         * @param y y-coordinate of centre of the square of new water
+         * @param next the source pushed before it, or null if none are waiting
+         */
+        Source(int x, int y, Source next) {
+            this.x = x;
+            this.y = y;
+            this.next = next;
+        }
+    }
+
+    /***
+     * The source pushed last, or null if none are waiting.
+     */
+    private final AtomicReference<Source> head = new AtomicReference<>();
+
+    /***
+     * Asks for a water source centred on a point. Never blocks, and may be called from any thread.
+     * @param x x-coordinate of centre of the square of new water
+     * @param y y-coordinate of centre of the square of new water
+     */
+    public void add(int x, int y) {
+        Source s;
+        do {
+            s = new Source(x, y, head.get());
+        } while (!head.compareAndSet(s.next, s));
+    }
+
+    /***
+     * Checks whether any sources are waiting.
+     * @return true if no sources are waiting
+     */
+    public boolean isEmpty() {
+        return head.get() == null;
+    }
+
+    /***
+     * Throws away the sources waiting, as when the water is reset.
+     */
+    public void clear() {
+        head.set(null);
+    }
+
+    /***
+     * Takes every source waiting and adds their water. Must be called between timesteps.
+     * The sources are sorted by row and swept down the area: on each row, the starts and ends of the squares covering it mark where the amount of water changes, and each stretch between changes is added as one run.
+     * @param water the water to add the sources to
+     * @return the number of sources added
+     */
+    int drainTo(Water water) {
+        Source s = head.getAndSet(null);
+        if (s == null)
+            return 0;
+        int count = 0;
+        for (Source t = s; t != null; t = t.next)
+            count++;
+        long[] keys = new long[count]; // y in the high half, x in the low half, so sorting orders by row
+        for (int i = 0; s != null; s = s.next, i++)
+            keys[i] = ((long) s.y << 32) | ((s.x ^ Integer.MIN_VALUE) & 0xFFFFFFFFL);
+        Arrays.sort(keys);
+
+        int r = Water.SOURCE_RADIUS;
+        int[] starts = new int[count], ends = new int[count];
+        int first = 0, last = 0; // the squares covering the current row are keys[first..last)
+        int row = y(keys[0]) - r;
+        while (first < count) {
+            while (last < count && y(keys[last]) - r <= row)
+                last++;
+            while (first < last && y(keys[first]) + r < row)
+                first++;
+            if (first == last) { // a gap between squares, so skip to the next one
+                if (last < count)
+                    row = y(keys[last]) - r;
+                else
+                    break;
+                continue;
+            }
+            int n = last - first;
+            for (int i = 0; i < n; i++) {
+                starts[i] = x(keys[first + i]) - r;
+                ends[i] = x(keys[first + i]) + r + 1;
+            }
+            Arrays.sort(starts, 0, n);
+            Arrays.sort(ends, 0, n);
+            int a = 0, b = 0, level = 0, from = 0;
+            while (b < n) {
+                int pos = (a < n && starts[a] < ends[b]) ? starts[a] : ends[b];
+                int next = level;
+                while (a < n && starts[a] == pos) {
+                    next++;
+                    a++;
+                }
+                while (b < n && ends[b] == pos) {
+                    next--;
+                    b++;
+                }
+                if (next != level) { // squares that only touch leave the level as it is and continue the run
+                    if (level > 0)
+                        water.addWater(row, from, pos, level * Water.SOURCE_DEPTH);
+                    level = next;
+                    from = pos;
+                }
+            }
+            row++;
+        }
+        return count;
+    }
+
+    /***
+     * Gets the x-coordinate from a sort key.
+     * @param key the sort key of a source, with y in the high half and x with its sign bit flipped in the low half
+     * @return the x-coordinate of centre of the source
+     */
+    private static int x(long key) {
+        return (int) key ^ Integer.MIN_VALUE;
+    }
+
+    /***
+     * Gets the y-coordinate from a sort key.
+     * @param key the sort key of a source, with y in the high half and x with its sign bit flipped in the low half
+     * @return the y-coordinate of centre of the source
+     */
+    private static int y(long key) {
+        return (int) (key >> 32);
+    }
+}
@@ -1,10 +1,12 @@
 import java.io.File;
-import java.awt.image.*;
-import java.awt.Color;
-import java.awt.Graphics2D;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Scanner;
 import java.io.FileWriter;
 import java.io.PrintWriter;
 
@@ -16,19 +18,51 @@ import java.io.PrintWriter;
 public class Terrain {
 
 	/***
-	 * A regular grid of height values.
+	 * The first bytes of a binary heightfield file.
 	 */
-	private float [][] height;
+	private static final byte[] BINARY_MAGIC = {'F', 'L', 'O', 'W'};
 
 	/***
-	 * Dimensions for the size of the terrain.
+	 * The size of the binary heightfield header in bytes: the magic bytes, dimx and dimy.
 	 */
-	private int dimx, dimy;
+	private static final int BINARY_HEADER = BINARY_MAGIC.length + 8;
+
+	/***
+	 * The base two logarithm of the number of heights mapped at a time from a binary heightfield. A single mapping is limited to 2GB.
+	 */
+	private static final int MAP_SHIFT = 28;
+
+	/***
+	 * The number of heights mapped at a time from a binary heightfield.
+	 */
+	private static final int MAP_CHUNK = 1 << MAP_SHIFT;
+
+	/***
+	 * Whether binary heightfields are left memory-mapped rather than copied onto the heap, set with -Dflow.mapTerrain.
+	 * "true" always maps them, "false" never does and "auto", the default, maps those taking more than a quarter of the maximum heap.
+	 */
+	private static final String MAP_TERRAIN = System.getProperty("flow.mapTerrain", "auto");
+
+	/***
+	 * The number of heights buffered at a time when writing a binary heightfield.
+	 */
+	private static final int WRITE_CHUNK = 1 << 20;
+
+	/***
+	 * A regular grid of height values, stored row by row so that the point (x,y) is at linear index y*dimx + x. Null when the heights are memory-mapped.
+	 */
+	private float [] height;
+
+	/***
+	 * The heights of a memory-mapped binary heightfield, in chunks of MAP_CHUNK heights, or null when the heights are on the heap.
+	 * The operating system reads the parts of the file that are used on demand and drops them again under memory pressure, so terrains larger than the heap can be simulated.
+	 */
+	private FloatBuffer[] mapped;
 
 	/***
-	 * A greyscale image for displaying the terrain top-down.
+	 * Dimensions for the size of the terrain.
 	 */
-	private BufferedImage img;
+	private int dimx, dimy;
 
 	/***
 	 * Returns the total size of the terrain.
@@ -61,43 +95,47 @@ public class Terrain {
 	 * @return height at coordinate (x,y)
 	 */
 	public float getHeight(int x, int y) {
-		return height[x][y];
+		return getHeight(y*dimx + x);
+	}
+
+	/***
+	 * Returns the height at a particular linear index in the terrain.
+	 * @param idx linear index of point, y*dimx + x
+	 * @return height at the linear index
+	 */
+	public float getHeight(int idx) {
+		float[] h = height;
+		return (h != null) ? h[idx] : mapped[idx >>> MAP_SHIFT].get(idx & (MAP_CHUNK - 1));
+	}
+
+	/***
+	 * Checks whether the heights are memory-mapped from the file rather than held on the heap.
+	 * @return true if the heights are memory-mapped
+	 */
+	public boolean isMapped() {
+		return mapped != null;
 	}
 
 	/***
-	 * Gets the greyscale image of the terrain.
-	 * @return greyscale image of terrain
+	 * Gets the height grid itself, for code that reads many heights at once. The heights must not be changed.
+	 * @return the heights in row order, or null if they are memory-mapped
 	 */
-	public BufferedImage getImage() {
-		  return img;
+	float[] heights() {
+		return height;
 	}
 
 	/***
-	 * Creates the terrain object by reading in a given file
+	 * Creates the terrain object by reading in a given file. The file may be in the text format or the binary format, which is detected from its first bytes.
 	 * @param fileName the name of the file which stores the heights in the terrain
 	 */
 	public Terrain(String fileName) {
 
 		try {
-			Scanner sc = new Scanner(new File("data/" + fileName.trim()));
-
-			// read grid dimensions
-			// x and y correpond to columns and rows, respectively.
-			// Using image coordinate system where top left is (0, 0).
-			dimx = sc.nextInt();
-			dimy = sc.nextInt();
-
-			// populate height grid
-			height = new float[dimx][dimy];
-
-			for(int x = 0; x < dimx; x++)
-				for(int y = 0; y < dimy; y++)
-					height[x][y] = sc.nextFloat();
-
-			sc.close();
-
-			// generate greyscale heightfield image
-			deriveImage();
+			File file = new File("data/" + fileName.trim());
+			if (isBinary(file))
+				readBinary(file);
+			else
+				readText(file);
 		} catch (IOException e) {
 			System.out.println("Unable to open input file "+fileName);
 			e.printStackTrace();
@@ -106,30 +144,114 @@ public class Terrain {
 			e.printStackTrace();
 		}
 	}
-	
+
+	/***
+	 * Creates the terrain object from heights already in memory, such as a generated terrain. The array is used as is, not copied.
+	 * @param dX x-dimension of the terrain
+	 * @param dY y-dimension of the terrain
+	 * @param heights the heights in row order, so that the point (x,y) is at y*dX + x
+	 */
+	public Terrain(int dX, int dY, float[] heights) {
+		if (heights.length != dX*dY)
+			throw new IllegalArgumentException("expected " + dX*dY + " heights but got " + heights.length);
+		dimx = dX;
+		dimy = dY;
+		height = heights;
+	}
+
+	/***
+	 * Reads the heights from a text file: the grid dimensions followed by whitespace-separated heights with x as the outer loop.
+	 * The file is parsed in parallel by TerrainParser, which gives the same heights as reading it with Scanner.
+	 * @param file the text file to read
+	 * @throws IOException if the file cannot be read
+	 */
+	private void readText(File file) throws IOException {
+		// x and y correpond to columns and rows, respectively.
+		// Using image coordinate system where top left is (0, 0).
+		TerrainParser parser = new TerrainParser(file);
+		dimx = parser.getDimX();
+		dimy = parser.getDimY();
+		height = parser.parse(Runtime.getRuntime().availableProcessors());
+	}
+
 	/***
-	 * Converts height values to greyscale colour and populates an image.
-	 */
-	public void deriveImage() {
-		img = new BufferedImage(dimx, dimy, BufferedImage.TYPE_INT_ARGB);
-		float maxh = -10000.0f, minh = 10000.0f;
-		
-		// determine range of heights
-		for(int x=0; x < dimx; x++)
-			for(int y=0; y < dimy; y++) {
-				float h = height[x][y];
-				if(h > maxh)
-					maxh = h;
-				if(h < minh)
-					minh = h;
+	 * Checks whether a file starts with the magic bytes of the binary heightfield format.
+	 * @param file the file to check
+	 * @return true if the file is a binary heightfield
+	 * @throws IOException if the file cannot be read
+	 */
+	private static boolean isBinary(File file) throws IOException {
+		try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer magic = ByteBuffer.allocate(BINARY_MAGIC.length);
+			while (magic.hasRemaining())
+				if (ch.read(magic) < 0)
+					return false; // too short to be binary
+			return java.util.Arrays.equals(magic.array(), BINARY_MAGIC);
+		}
+	}
+
+	/***
+	 * Reads the heights from a binary file by memory-mapping it, so there is no parsing: the magic bytes, dimx and dimy as little-endian ints, then the heights as little-endian floats in row order (y*dimx + x).
+	 * Large heightfields are left mapped (see -Dflow.mapTerrain), and the rest are copied onto the heap.
+	 * @param file the binary file to read
+	 * @throws IOException if the file cannot be read
+	 */
+	private void readBinary(File file) throws IOException {
+		try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer header = ch.map(FileChannel.MapMode.READ_ONLY, 0, BINARY_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+			header.position(BINARY_MAGIC.length);
+			dimx = header.getInt();
+			dimy = header.getInt();
+			if (dimx <= 0 || dimy <= 0 || (long) dimx*dimy > TerrainParser.MAX_HEIGHTS)
+				throw new java.util.InputMismatchException(dimx + "x" + dimy + " is not a grid size a terrain can hold");
+			if (ch.size() < BINARY_HEADER + 4L*dimx*dimy)
+				throw new java.util.InputMismatchException("truncated binary heightfield");
+
+			int size = dimx*dimy;
+			boolean keepMapped = MAP_TERRAIN.equals("true") || (MAP_TERRAIN.equals("auto") && 4L*size > Runtime.getRuntime().maxMemory() / 4);
+			FloatBuffer[] chunks = new FloatBuffer[(size + MAP_CHUNK - 1) / MAP_CHUNK];
+			for (int c = 0, pos = 0; c < chunks.length; c++, pos += MAP_CHUNK) { // map in chunks as a single mapping is limited to 2GB
+				int count = Math.min(MAP_CHUNK, size - pos);
+				chunks[c] = ch.map(FileChannel.MapMode.READ_ONLY, BINARY_HEADER + 4L*pos, 4L*count)
+				              .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer(); // the mapping stays valid after the channel is closed
 			}
-		
-		for(int x=0; x < dimx; x++)
-			for(int y=0; y < dimy; y++) {
-				 // find normalized height value in range
-				 float val = (height[x][y] - minh) / (maxh - minh);
-				 Color col = new Color(val, val, val, 1.0f);
-				 img.setRGB(x, y, col.getRGB());
+			if (keepMapped)
+				mapped = chunks;
+			else {
+				height = new float[size];
+				for (int c = 0, pos = 0; c < chunks.length; c++, pos += MAP_CHUNK)
+					chunks[c].get(height, pos, Math.min(MAP_CHUNK, size - pos));
 			}
+		}
+	}
+
+	/***
+	 * Writes the terrain in the binary heightfield format, which loads much faster than the text format.
+	 * @param fileName the name of the file to write, relative to the data directory like the input files
+	 * @throws IOException if the file cannot be written
+	 */
+	public void saveBinary(String fileName) throws IOException {
+		Path path = new File("data/" + fileName.trim()).toPath();
+		try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			ByteBuffer buf = ByteBuffer.allocate(BINARY_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+			buf.put(BINARY_MAGIC).putInt(dimx).putInt(dimy).flip();
+			while (buf.hasRemaining())
+				ch.write(buf);
+
+			buf = ByteBuffer.allocate(4*Math.min(WRITE_CHUNK, dim())).order(ByteOrder.LITTLE_ENDIAN);
+			for (int pos = 0; pos < dim(); pos += WRITE_CHUNK) {
+				int count = Math.min(WRITE_CHUNK, dim() - pos);
+				buf.clear();
+				FloatBuffer out = buf.asFloatBuffer();
+				if (height != null)
+					out.put(height, pos, count);
+				else
+					for (int i = 0; i < count; i++)
+						out.put(getHeight(pos + i));
+				buf.limit(4*count);
+				while (buf.hasRemaining())
+					ch.write(buf);
+			}
+		}
 	}
-}
\ No newline at end of file
+}
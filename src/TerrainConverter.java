@@ -0,0 +1,30 @@
+/***
+ * Converts a terrain file from the text format to the binary heightfield format.
+ * @author Rea Keebine
+ * @version 1.0.0 Oct 18, 2026
+ */
+public class TerrainConverter {
+
+    /***
+     * Reads a terrain file and writes it out in the binary format. Both files are in the data directory.
+     * @param args command-line arguments of the input and output file names
+     */
+    public static void main(String[] args) {
+        // check that number of command line arguments is correct
+        if (args.length != 2) {
+            System.out.println("Incorrect number of command line arguments. Should have form: java TerrainConverter inputfilename outputfilename");
+            System.exit(0);
+        }
+
+        Terrain land = new Terrain(args[0]);
+        if (land.dim() == 0)
+            System.exit(1); // the terrain could not be read, the reason has already been printed
+        try {
+            land.saveBinary(args[1]);
+            System.out.println("Wrote " + land.getDimX() + "x" + land.getDimY() + " binary heightfield to data/" + args[1]);
+        } catch (java.io.IOException e) {
+            System.out.println("Unable to write output file " + args[1]);
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/***
+ * The shaded terrain as a mipmap, for drawing any part of it at any zoom in time proportional to the pixels drawn rather than the size of the grid.
+ * Level 0 is full resolution and is shaded on demand from the heights, so it is never held in memory. Each level above halves the resolution of the one below by averaging 2x2 texels, and is built once.
+ * This is the only place the terrain is shaded for display. The panel copies each level that is small enough, level 0 included, into a display-compatible image once, so panning and zooming blit it; only a level too large for an image is drawn through draw, shading level 0 again per pixel for every view.
+ * @author Rea Keebine
+ * @version 1.0.0 Oct 18, 2026
+ */
+public class TerrainLayer {
+
+    /***
+     * The ways the terrain can be shaded for display.
+     */
+    public enum Shading {
+        /***
+         * Brighter for higher ground.
+         */
+        GREYSCALE,
+        /***
+         * Lit from the north-west so that slopes and ridges stand out.
+         */
+        HILLSHADE
+    }
+
+    /***
+     * Scales height differences into slopes for hillshading, as the grid spacing is larger than the height units.
+     */
+    private static final float HILLSHADE_SCALE = 0.25f;
+
+    /***
+     * An object which contains heights across the terrain.
+     */
+    private Terrain land;
+
+    /***
+     * How the terrain is shaded.
+     */
+    private Shading shading;
+
+    /***
+     * The lowest and highest heights, for the greyscale shading.
+     */
+    private float minHeight, maxHeight;
+
+    /***
+     * The packed ARGB texels of each level in row order. Level 0 is null, as it is shaded on demand.
+     */
+    private int[][] levels;
+
+    /***
+     * The width of each level in texels.
+     */
+    private int[] widths;
+
+    /***
+     * Builds the mipmap of a terrain with the given shading.
+     * @param terrain an object which contains heights across the terrain
+     * @param s how to shade the terrain
+     */
+    public TerrainLayer(Terrain terrain, Shading s) {
+        land = terrain;
+        shading = s;
+        if (shading == Shading.GREYSCALE)
+            findRange();
+        int count = levelCount(terrain.getDimX(), terrain.getDimY());
+        levels = new int[count][];
+        widths = new int[count];
+        widths[0] = terrain.getDimX();
+        int below = terrain.getDimY();
+        for (int l = 1; l < count; l++) {
+            int w = (terrain.getDimX() + (1 << l) - 1) >> l, h = (terrain.getDimY() + (1 << l) - 1) >> l;
+            int[] tex = new int[w*h];
+            for (int y = 0; y < h; y++)
+                for (int x = 0; x < w; x++) {
+                    // the 2x2 block below, clamped to the last row and column
+                    int x0 = 2*x, x1 = Math.min(2*x + 1, widths[l-1] - 1);
+                    int y0 = 2*y, y1 = Math.min(2*y + 1, below - 1);
+                    tex[y*w + x] = average(texel(l-1, x0, y0), texel(l-1, x1, y0), texel(l-1, x0, y1), texel(l-1, x1, y1));
+                }
+            levels[l] = tex;
+            widths[l] = w;
+            below = h;
+        }
+    }
+
+    /***
+     * Works out how many levels a mipmap of a grid needs, so that the coarsest is a single texel.
+     * @param dX x-dimension of the grid
+     * @param dY y-dimension of the grid
+     * @return the number of levels, including level 0
+     */
+    static int levelCount(int dX, int dY) {
+        int count = 1;
+        while (Math.max(dX, dY) > (1 << (count - 1)))
+            count++;
+        return count;
+    }
+
+    /***
+     * Gets the number of levels of the mipmap.
+     * @return the number of levels, including level 0
+     */
+    public int getLevelCount() {
+        return levels.length;
+    }
+
+    /***
+     * Gets the width of a level.
+     * @param level the level
+     * @return the width in texels
+     */
+    public int getLevelWidth(int level) {
+        return widths[level];
+    }
+
+    /***
+     * Gets the height of a level.
+     * @param level the level
+     * @return the height in texels
+     */
+    public int getLevelHeight(int level) {
+        return (land.getDimY() + (1 << level) - 1) >> level;
+    }
+
+    /***
+     * Gets a row of texels of a level, shading them if the level is 0.
+     * @param level the level
+     * @param y the row within the level
+     * @param into the array to fill, at least getLevelWidth(level) long
+     */
+    public void getRow(int level, int y, int[] into) {
+        if (level == 0)
+            for (int x = 0; x < widths[0]; x++)
+                into[x] = shade(x, y);
+        else
+            System.arraycopy(levels[level], y*widths[level], into, 0, widths[level]);
+    }
+
+    /***
+     * Gets the shading the mipmap was built for.
+     * @return the shading
+     */
+    public Shading getShading() {
+        return shading;
+    }
+
+    /***
+     * Gets the colour of a texel.
+     * @param level the level
+     * @param x column within the level
+     * @param y row within the level
+     * @return the packed ARGB colour
+     */
+    private int texel(int level, int x, int y) {
+        return (level == 0) ? shade(x, y) : levels[level][y*widths[level] + x];
+    }
+
+    /***
+     * Gets the colour of a single point of the terrain at full resolution.
+     * @param x x-coordinate of point
+     * @param y y-coordinate of point
+     * @return the packed ARGB colour
+     */
+    private int shade(int x, int y) {
+        if (shading == Shading.HILLSHADE)
+            return hillshade(x, y);
+        float val = (land.getHeight(x, y) - minHeight) / (maxHeight - minHeight); // find normalized height value in range
+        return grey(val);
+    }
+
+    /***
+     * Finds the lowest and highest heights, for the greyscale shading.
+     */
+    private void findRange() {
+        float maxh = -10000.0f, minh = 10000.0f;
+        for (int idx = 0; idx < land.dim(); idx++) {
+            float h = land.getHeight(idx);
+            if (h > maxh)
+                maxh = h;
+            if (h < minh)
+                minh = h;
+        }
+        minHeight = minh;
+        maxHeight = maxh;
+    }
+
+    /***
+     * Shades a single point as if lit by the sun from the north-west, 45 degrees above the horizon, using the slope between its neighbours.
+     * @param x x-coordinate of point
+     * @param y y-coordinate of point
+     * @return the packed ARGB colour
+     */
+    private int hillshade(int x, int y) {
+        final float lx = -0.5f, ly = -0.5f, lz = 0.70710677f; // unit vector towards the sun, north is -y
+        int dimx = land.getDimX(), dimy = land.getDimY();
+        // central differences, one-sided at the edges
+        int xl = Math.max(x-1, 0), xr = Math.min(x+1, dimx-1);
+        int yu = Math.max(y-1, 0), yd = Math.min(y+1, dimy-1);
+        float dzdx = (land.getHeight(y*dimx + xr) - land.getHeight(y*dimx + xl)) * HILLSHADE_SCALE / Math.max(1, xr - xl);
+        float dzdy = (land.getHeight(yd*dimx + x) - land.getHeight(yu*dimx + x)) * HILLSHADE_SCALE / Math.max(1, yd - yu);
+        // dot product of the surface normal (-dzdx, -dzdy, 1) with the sun direction
+        float shade = (-dzdx*lx - dzdy*ly + lz) / (float) Math.sqrt(dzdx*dzdx + dzdy*dzdy + 1);
+        return grey(Math.max(0.0f, shade));
+    }
+
+    /***
+     * Packs an opaque grey the same way as new Color(val, val, val, 1.0f).
+     * @param val brightness in the range [0, 1]
+     * @return the packed ARGB colour
+     */
+    private static int grey(float val) {
+        int v = (int) (val*255 + 0.5f);
+        return 0xFF000000 | (v << 16) | (v << 8) | v;
+    }
+
+    /***
+     * Averages four packed ARGB colours channel by channel.
+     * @return the average colour
+     */
+    private static int average(int a, int b, int c, int d) {
+        int colour = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            int sum = ((a >>> shift) & 0xFF) + ((b >>> shift) & 0xFF) + ((c >>> shift) & 0xFF) + ((d >>> shift) & 0xFF);
+            colour |= ((sum + 2) >> 2) << shift;
+        }
+        return colour;
+    }
+
+    /***
+     * Draws the part of the terrain in view into a screen-sized image, from the level that matches the zoom. Pixels outside the grid are made transparent.
+     * @param view the part of the grid shown
+     * @param pixels the packed ARGB pixels of the image, in row order
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param cols scratch space of at least width entries
+     */
+    public void draw(Viewport view, int[] pixels, int width, int height, int[] cols) {
+        int level = view.getLevel(levels.length);
+        view.gridColumns(cols);
+        int[] tex = levels[level];
+        int w = widths[level];
+        for (int sy = 0, row = 0; sy < height; sy++, row += width) {
+            int gy = view.toGridY(sy);
+            if (gy < 0 || gy >= land.getDimY()) {
+                java.util.Arrays.fill(pixels, row, row + width, 0);
+                continue;
+            }
+            int texRow = (gy >> level)*w;
+            for (int sx = 0; sx < width; sx++) {
+                int gx = cols[sx];
+                if (gx < 0)
+                    pixels[row + sx] = 0;
+                else
+                    pixels[row + sx] = (level == 0) ? shade(gx, gy) : tex[texRow + (gx >> level)];
+            }
+        }
+    }
+}
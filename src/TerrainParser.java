@@ -0,0 +1,367 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.InputMismatchException;
+
+/***
+ * A parallel parser for the text heightfield format. Reads the file in large byte chunks and parses the heights straight from the bytes, with the body split across threads at line (or whitespace) boundaries.
+ * Produces exactly the same floats as reading the file with Scanner.nextFloat.
+ * @author Rea Keebine
+ * @version 1.0.0 Oct 18, 2026
+ */
+public class TerrainParser {
+
+    /***
+     * The number of bytes read from the file at a time by each thread.
+     */
+    private static final int CHUNK = 1 << 20;
+
+    /***
+     * How far past a split point to look for the end of a line before settling for any whitespace.
+     */
+    private static final int LINE_SEARCH = 1 << 16;
+
+    /***
+     * Exact float powers of ten, used while the decimal digits fit in a float without rounding.
+     */
+    private static final float[] POW10 = {1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f};
+
+    /***
+     * The largest mantissa a float holds exactly.
+     */
+    private static final long MAX_EXACT = 1L << 24;
+
+    /***
+     * The most heights a terrain may hold, as points are found by an int linear index and a text heightfield is parsed into a single array.
+     */
+    static final int MAX_HEIGHTS = Integer.MAX_VALUE - 8;
+
+    /***
+     * The file being parsed.
+     */
+    private FileChannel channel;
+
+    /***
+     * Dimensions of the heightfield, read from the header.
+     */
+    private int dimx, dimy;
+
+    /***
+     * The file position just after the header.
+     */
+    private long bodyStart;
+
+    /***
+     * Opens a text heightfield and reads its header.
+     * @param file the text file to parse
+     * @throws IOException if the file cannot be read
+     */
+    public TerrainParser(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            readHeader();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /***
+     * Gets the x-dimension read from the header.
+     * @return the x-dimension of the heightfield
+     */
+    public int getDimX() {
+        return dimx;
+    }
+
+    /***
+     * Gets the y-dimension read from the header.
+     * @return the y-dimension of the heightfield
+     */
+    public int getDimY() {
+        return dimy;
+    }
+
+    /***
+     * Reads the two grid dimensions at the start of the file.
+     * @throws IOException if the file cannot be read
+     */
+    private void readHeader() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(channel.size(), 256));
+        channel.read(buf, 0);
+        byte[] b = buf.array();
+        int pos = 0;
+        int[] dims = new int[2];
+        for (int i = 0; i < 2; i++) {
+            while (pos < buf.position() && isSpace(b[pos]))
+                pos++;
+            int start = pos;
+            while (pos < buf.position() && !isSpace(b[pos]))
+                pos++;
+            if (pos == buf.position() || pos == start)
+                throw new InputMismatchException("missing grid dimensions");
+            try {
+                dims[i] = Integer.parseInt(new String(b, start, pos - start, "ISO-8859-1"));
+            } catch (NumberFormatException e) {
+                throw new InputMismatchException(e.getMessage());
+            }
+        }
+        if (dims[0] <= 0 || dims[1] <= 0)
+            throw new InputMismatchException("grid dimensions must be positive but are " + dims[0] + "x" + dims[1]);
+        if ((long) dims[0]*dims[1] > MAX_HEIGHTS)
+            throw new InputMismatchException(dims[0] + "x" + dims[1] + " is more than the " + MAX_HEIGHTS + " heights a terrain can hold");
+        dimx = dims[0];
+        dimy = dims[1];
+        bodyStart = pos;
+    }
+
+    /***
+     * Parses the heights with the given number of threads and closes the file.
+     * @param threads the number of threads to parse with
+     * @return the heights in row order, so that the point (x,y) is at y*dimx + x
+     * @throws IOException if the file cannot be read
+     */
+    public float[] parse(int threads) throws IOException {
+        try {
+            long size = channel.size();
+            threads = (int) Math.max(1, Math.min(threads, (size - bodyStart) / CHUNK + 1));
+
+            // split the body into ranges that start and end between tokens
+            long[] bounds = new long[threads + 1];
+            bounds[0] = bodyStart;
+            bounds[threads] = size;
+            for (int i = 1; i < threads; i++)
+                bounds[i] = Math.max(bounds[i-1], boundaryAfter(bodyStart + (size - bodyStart) * i / threads));
+
+            // first pass counts the tokens in each range so every thread knows where its heights go
+            Worker[] workers = new Worker[threads];
+            for (int i = 0; i < threads; i++)
+                workers[i] = new Worker(bounds[i], bounds[i+1], null, 0);
+            runAll(workers);
+
+            float[] height = new float[dimx*dimy];
+            long first = 0;
+            for (int i = 0; i < threads; i++) {
+                long count = workers[i].tokens;
+                workers[i] = new Worker(bounds[i], bounds[i+1], height, first);
+                first += count;
+            }
+            if (first < height.length)
+                throw new InputMismatchException("expected " + height.length + " heights but found " + first);
+            runAll(workers);
+            return height;
+        } finally {
+            channel.close();
+        }
+    }
+
+    /***
+     * Starts the workers, waits for them and rethrows the first failure.
+     * @param workers the workers to run
+     * @throws IOException if a worker could not read the file
+     */
+    private static void runAll(Worker[] workers) throws IOException {
+        for (Worker w : workers)
+            w.start();
+        for (Worker w : workers) {
+            try {
+                w.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while parsing", e);
+            }
+        }
+        for (Worker w : workers)
+            if (w.failure != null) {
+                if (w.failure instanceof IOException)
+                    throw (IOException) w.failure;
+                throw (RuntimeException) w.failure;
+            }
+    }
+
+    /***
+     * Finds the first token boundary at or after a position, preferring the start of the next line.
+     * @param pos the position to search from
+     * @return the position just after a newline, or just after any whitespace if no newline is close by
+     * @throws IOException if the file cannot be read
+     */
+    private long boundaryAfter(long pos) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(LINE_SEARCH);
+        long size = channel.size();
+        long firstSpace = -1;
+        for (long base = pos; base < size; base += buf.limit()) {
+            buf.clear();
+            channel.read(buf, base);
+            buf.flip();
+            byte[] b = buf.array();
+            for (int i = 0; i < buf.limit(); i++) {
+                if (b[i] == '\n')
+                    return base + i + 1;
+                if (firstSpace < 0 && isSpace(b[i]))
+                    firstSpace = base + i + 1;
+            }
+            if (firstSpace >= 0)
+                return firstSpace;
+        }
+        return size;
+    }
+
+    /***
+     * Checks whether a byte is a delimiter, using the same whitespace as Scanner.
+     * @param b the byte to check
+     * @return true if the byte is whitespace
+     */
+    private static boolean isSpace(byte b) {
+        return b == ' ' || (b >= '\t' && b <= '\r') || (b >= 0x1C && b <= 0x1F);
+    }
+
+    /***
+     * Converts the bytes of a token into a float. Plain decimals whose digits fit exactly in a float are divided by an exact power of ten, which rounds the same way as Float.parseFloat. Anything else goes through Float.parseFloat.
+     * @param b the token bytes
+     * @param len the length of the token
+     * @return the parsed value
+     */
+    static float parseFloat(byte[] b, int len) {
+        int i = 0;
+        boolean neg = false;
+        if (b[0] == '-' || b[0] == '+') {
+            neg = b[0] == '-';
+            i = 1;
+        }
+        long mant = 0;
+        int frac = -1; // number of digits after the point, -1 before the point
+        boolean digits = false;
+        for (; i < len; i++) {
+            byte c = b[i];
+            if (c >= '0' && c <= '9') {
+                mant = mant*10 + (c - '0');
+                digits = true;
+                if (frac >= 0)
+                    frac++;
+                if (mant >= MAX_EXACT || frac >= POW10.length)
+                    return slowParse(b, len);
+            } else if (c == '.' && frac < 0)
+                frac = 0;
+            else
+                return slowParse(b, len);
+        }
+        if (!digits)
+            return slowParse(b, len);
+        float v = frac > 0 ? mant / POW10[frac] : mant;
+        return neg ? -v : v;
+    }
+
+    /***
+     * Parses a token that the fast path does not handle.
+     * @param b the token bytes
+     * @param len the length of the token
+     * @return the parsed value
+     */
+    private static float slowParse(byte[] b, int len) {
+        String token = new String(b, 0, len, java.nio.charset.StandardCharsets.ISO_8859_1);
+        try {
+            return Float.parseFloat(token);
+        } catch (NumberFormatException e) {
+            throw new InputMismatchException("not a height: " + token);
+        }
+    }
+
+    /***
+     * A thread that walks one range of the body, either counting its tokens or parsing them into the height grid.
+     */
+    private class Worker extends Thread {
+
+        /***
+         * The range of the file this thread walks, [from, to).
+         */
+        private long from, to;
+
+        /***
+         * The height grid to fill, or null when only counting.
+         */
+        private float[] height;
+
+        /***
+         * The position in the file order of the first token in the range.
+         */
+        private long first;
+
+        /***
+         * The number of tokens found in the range.
+         */
+        private long tokens;
+
+        /***
+         * The exception that stopped the thread, if any.
+         */
+        private Exception failure;
+
+        /***
+         * Creates a worker for a range of the body.
+         * @param start the first byte of the range
+         * @param end the byte after the range
+         * @param grid the height grid to fill, or null to only count tokens
+         * @param firstToken the position in the file order of the first token in the range
+         */
+        Worker(long start, long end, float[] grid, long firstToken) {
+            from = start;
+            to = end;
+            height = grid;
+            first = firstToken;
+            setName("terrainParser");
+        }
+
+        /***
+         * Reads the range chunk by chunk and handles each token, including tokens split across chunks.
+         */
+        public void run() {
+            try {
+                ByteBuffer buf = ByteBuffer.allocate((int) Math.min(CHUNK, Math.max(1, to - from)));
+                byte[] tok = new byte[64];
+                int tokLen = 0;
+                long n = first;
+                long limit = (long) dimx*dimy; // heights past the grid size are ignored, as Scanner never reads them
+                // the file lists heights with x as the outer loop, so track (x,y) of the next token
+                int x = (int) Math.min(n / Math.max(1, dimy), dimx);
+                int y = (int) (n - (long) x*dimy);
+                for (long base = from; base < to; base += buf.limit()) {
+                    buf.clear();
+                    buf.limit((int) Math.min(buf.capacity(), to - base));
+                    while (buf.hasRemaining())
+                        if (channel.read(buf, base + buf.position()) < 0)
+                            throw new IOException("file shrank while parsing");
+                    buf.flip();
+                    byte[] b = buf.array();
+                    int lim = buf.limit();
+                    for (int i = 0; i <= lim; i++) {
+                        boolean end = (i == lim) ? base + lim >= to : isSpace(b[i]);
+                        if (i == lim && !end)
+                            break; // token continues in the next chunk
+                        if (end) {
+                            if (tokLen > 0) {
+                                if (height != null && n < limit) {
+                                    height[y*dimx + x] = parseFloat(tok, tokLen);
+                                    if (++y == dimy) {
+                                        y = 0;
+                                        x++;
+                                    }
+                                }
+                                n++;
+                                tokLen = 0;
+                            }
+                        } else {
+                            if (tokLen == tok.length)
+                                tok = java.util.Arrays.copyOf(tok, tokLen*2);
+                            tok[tokLen++] = b[i];
+                        }
+                    }
+                }
+                tokens = n - first;
+            } catch (IOException | RuntimeException e) {
+                failure = e;
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
+/***
+ * The order in which the workers claim the tiles of a timestep. Either all the tiles form one phase and are claimed in any order,
+ * or the tiles are coloured like a 2x2 checkerboard and worked on in four phases, one colour at a time with the workers waiting for each other in between.
+ * Tiles of the same colour are a whole tile apart, so no two tiles worked on at the same time touch the same points, and the result no longer depends on the number of threads or their timing.
+ * A timestep may also take several passes over the area, each through all of its phases, as the synchronous timesteps of FlowPlan do.
+ * @author Rea Keebine
+ * @version 1.0.0 Oct 18, 2026
+ */
+public class TileSchedule {
+
+    /***
+     * The tile numbers grouped by phase.
+     */
+    private int[] order;
+
+    /***
+     * Where each phase starts in order, with one extra entry marking the end of the last phase.
+     */
+    private int[] phaseStart;
+
+    /***
+     * The next position in order to be claimed in each phase.
+     */
+    private AtomicInteger[] next;
+
+    /***
+     * Creates the schedule for the tiles of a Water object.
+     * @param water an object which contains depths of the water across the terrain
+     * @param phased true for four checkerboard phases, which makes timesteps deterministic, or false for a single phase
+     */
+    public TileSchedule(Water water, boolean phased) {
+        this(water, phased, 1);
+    }
+
+    /***
+     * Creates the schedule for the tiles of a Water object, going over the area several times in each timestep.
+     * @param water an object which contains depths of the water across the terrain
+     * @param phased true for four checkerboard phases in each pass, or false for a single phase
+     * @param passes the number of passes over the area
+     */
+    public TileSchedule(Water water, boolean phased, int passes) {
+        int tiles = water.getTileCount();
+        int colours = phased ? 4 : 1;
+        order = new int[tiles*passes];
+        phaseStart = new int[colours*passes + 1];
+        int pos = 0;
+        for (int pass = 0; pass < passes; pass++)
+            for (int c = 0; c < colours; c++) {
+                phaseStart[pass*colours + c] = pos;
+                for (int t = 0; t < tiles; t++)
+                    if (!phased || colour(t, water.getTilesX()) == c)
+                        order[pos++] = t;
+            }
+        phaseStart[colours*passes] = pos;
+        next = new AtomicInteger[colours*passes];
+        for (int c = 0; c < next.length; c++)
+            next[c] = new AtomicInteger();
+    }
+
+    /***
+     * Finds the checkerboard colour of a tile.
+     * @param t the tile number
+     * @param tilesX the number of tiles across the area
+     * @return the colour, from 0 to 3
+     */
+    private static int colour(int t, int tilesX) {
+        return (t % tilesX & 1) | (t / tilesX & 1) << 1;
+    }
+
+    /***
+     * Gets the number of phases in a timestep.
+     * @return the number of passes times 1 or 4
+     */
+    public int getPhases() {
+        return next.length;
+    }
+
+    /***
+     * Claims the next unclaimed tile of a phase.
+     * @param phase the phase being worked on
+     * @return the tile number, or -1 if every tile of the phase has been claimed
+     */
+    public int claim(int phase) {
+        int pos = phaseStart[phase] + next[phase].getAndIncrement();
+        return (pos < phaseStart[phase + 1]) ? order[pos] : -1;
+    }
+
+    /***
+     * Makes every tile claimable again. Called by the controller before each timestep, while the workers are waiting.
+     */
+    public void rewind() {
+        for (AtomicInteger n : next)
+            n.set(0);
+    }
+}
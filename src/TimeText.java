@@ -10,7 +10,32 @@ public class TimeText extends JTextArea {
     /***
      * Timesteps since the start of the simulation.
      */
-    private int time;
+    private long time;
+
+    /***
+     * The most recently measured number of timesteps per second.
+     */
+    private double rate;
+
+    /***
+     * The most recently measured time to paint a frame, in milliseconds.
+     */
+    private double frameTime;
+
+    /***
+     * The most recently measured number of frames displayed per second.
+     */
+    private double fps;
+
+    /***
+     * The number of timesteps run between frames in turbo mode, or 0 outside it.
+     */
+    private int stepsPerFrame;
+
+    /***
+     * The timestep at which the water became steady, or -1 while it is still changing.
+     */
+    private long steadyAt = -1;
 
     /***
      * Sets up a new TimeText text area with a time of zero.
@@ -23,7 +48,9 @@ public class TimeText extends JTextArea {
      * Sets the text of the text area to the current time.
      */
     public void showTime() {
-        super.setText("Time: " + time);
+        String frames = (stepsPerFrame > 0) ? String.format("%.1f fps, %d steps/frame", fps, stepsPerFrame) : String.format("%.1f fps, %.2f ms/frame", fps, frameTime);
+        String speed = (steadyAt >= 0) ? String.format("steady since %d", steadyAt) : String.format("%.1f steps/s", rate);
+        super.setText(String.format("Time: %d (%s)%n%s", time, speed, frames));
     }
 
     /***
@@ -31,6 +58,11 @@ public class TimeText extends JTextArea {
      */
     public void resetTime() {
         time = 0;
+        rate = 0;
+        frameTime = 0;
+        fps = 0;
+        stepsPerFrame = 0;
+        steadyAt = -1;
         showTime();
     }
 
@@ -41,4 +73,52 @@ public class TimeText extends JTextArea {
         time = time + 1;
         showTime();
     }
+
+    /***
+     * Sets the time without showing it.
+     * @param t timesteps since the start of the simulation
+     */
+    public void setTime(long t) {
+        time = t;
+    }
+
+    /***
+     * Sets the displayed frame rate shown below the time.
+     * @param framesPerSec the number of frames displayed per second
+     */
+    public void setFps(double framesPerSec) {
+        fps = framesPerSec;
+    }
+
+    /***
+     * Sets the simulation speed shown next to the time.
+     * @param stepsPerSec the number of timesteps per second
+     */
+    public void setRate(double stepsPerSec) {
+        rate = stepsPerSec;
+    }
+
+    /***
+     * Sets the number of timesteps run between frames shown below the time, in place of the frame time.
+     * @param steps the timesteps per frame, or 0 to show the frame time instead
+     */
+    public void setStepsPerFrame(int steps) {
+        stepsPerFrame = steps;
+    }
+
+    /***
+     * Sets the timestep at which the water became steady, shown in place of the simulation speed.
+     * @param step the timestep count, or -1 while the water is still changing
+     */
+    public void setSteady(long step) {
+        steadyAt = step;
+    }
+
+    /***
+     * Sets the frame time shown below the time.
+     * @param ms the time to paint a frame in milliseconds
+     */
+    public void setFrameTime(double ms) {
+        frameTime = ms;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,173 @@
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/***
+ * Computes the water surfaces of a whole tile at once with SIMD instructions, using the incubating Vector API, for the first pass of a synchronous timestep.
+ * In that pass every point decides from the depths at the start of the timestep, so the surfaces of a tile and the ring of points around it can be worked out row by row before any point looks at its neighbours.
+ * Each row is read with contiguous loads of depths and heights, the surfaces are computed a vector at a time with a separate multiply and add, so they round exactly like the scalar code, and the search for the lowest neighbour then reads them from the block.
+ * Timesteps that move water in place cannot use it, as each point must see the moves of the points visited before it.
+ * Needs --add-modules jdk.incubator.vector both to compile and to run; FlowThread falls back to its scalar search when the module is missing.
+ * @author Rea Keebine
+ * @version 1.0.0 Oct 18, 2026
+ */
+public class VectorFlow {
+
+    /***
+     * The widest vector of ints the hardware supports.
+     */
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+
+    /***
+     * The widest vector of floats the hardware supports, with as many lanes as INTS.
+     */
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+
+    /***
+     * The Water object, whose depth pages are read directly.
+     */
+    private Water water;
+
+    /***
+     * Dimensions of the area.
+     */
+    private int dimx, dimy;
+
+    /***
+     * The height grid of the Terrain object, read directly.
+     */
+    private float[] height;
+
+    /***
+     * The width of a block: a tile and a point either side of it.
+     */
+    private int stride;
+
+    /***
+     * Offsets within a block of the eight neighbours of a point, in the order north-west, north, north-east, west, east, south-west, south, south-east, as in FlowThread.
+     */
+    private int[] around;
+
+    /***
+     * Creates the computation for the given Terrain and Water objects.
+     * @param terrain an object which contains heights across the terrain
+     * @param water an object which contains depths of the water across the terrain
+     */
+    private VectorFlow(Terrain terrain, Water water) {
+        this.water = water;
+        height = terrain.heights();
+        dimx = water.getDimX();
+        dimy = water.getDimY();
+        stride = water.getTileSize() + 2;
+        around = new int[]{-stride-1, -stride, -stride+1,
+                           -1,                 1,
+                           stride-1,  stride,  stride+1};
+    }
+
+    /***
+     * Creates the SIMD computation if it can run here, which needs the Vector API module, hardware with at least four float lanes, and both grids in arrays.
+     * @param terrain an object which contains heights across the terrain
+     * @param water an object which contains depths of the water across the terrain
+     * @return the computation, or null if the scalar search should be used
+     */
+    public static VectorFlow create(Terrain terrain, Water water) {
+        try {
+            if (FLOATS.length() < 4 || INTS.length() != FLOATS.length())
+                return null; // too narrow to beat scalar code
+            if (terrain.heights() == null)
+                return null; // the heights are memory-mapped rather than in an array
+            if (water.isOffHeap())
+                return null; // the depths are off the heap rather than in pages
+            return new VectorFlow(terrain, water);
+        } catch (LinkageError e) { // jdk.incubator.vector not added
+            return null;
+        }
+    }
+
+    /***
+     * Gets the number of floats in a block, for sizing the array the surfaces are computed into.
+     * @return the size of a block
+     */
+    public int blockSize() {
+        return stride*stride;
+    }
+
+    /***
+     * Gets where a point is in the block of the tile it belongs to.
+     * @param t the tile number
+     * @param idx linear index of a point of the tile
+     * @return the index of the point in the block
+     */
+    public int blockIndex(int t, int idx) {
+        int origin = water.getTileOrigin(t);
+        return (idx / dimx - origin / dimx + 1)*stride + (idx % dimx - origin % dimx + 1);
+    }
+
+    /***
+     * Computes the water surface of every point of a tile and the ring of points around it that lies in the area, as depth*0.01f + height, into a block.
+     * Row y0 - 1 + r of the area is row r of the block and column x0 - 1 + c is column c, where (x0, y0) is the origin of the tile. Parts of the ring outside the area are left as they were.
+     * @param t the tile number
+     * @param block the surfaces, at least blockSize() long
+     */
+    public void surfaces(int t, float[] block) {
+        int origin = water.getTileOrigin(t);
+        int x0 = origin % dimx, y0 = origin / dimx;
+        int xa = Math.max(0, x0 - 1), xb = Math.min(dimx, x0 + water.getTileWidth(t) + 1);
+        int ya = Math.max(0, y0 - 1), yb = Math.min(dimy, y0 + water.getTileHeight(t) + 1);
+        for (int y = ya; y < yb; y++)
+            row(y*dimx + xa, xb - xa, block, (y - y0 + 1)*stride + (xa - x0 + 1));
+    }
+
+    /***
+     * Computes the surfaces of a run of points along a row.
+     * @param idx linear index of the first point
+     * @param len the number of points
+     * @param block the surfaces
+     * @param at the index in the block of the first point
+     */
+    private void row(int idx, int len, float[] block, int at) {
+        int[] page = water.pageOf(idx);
+        int off = idx & Water.PAGE_MASK;
+        if (off + len > Water.PAGE_MASK + 1) { // the run crosses into the next page
+            for (int i = 0; i < len; i++)
+                block[at + i] = water.getDepth(idx + i)*0.01f + height[idx + i];
+            return;
+        }
+        if (page == null) { // a dry page, where the surface is the ground
+            System.arraycopy(height, idx, block, at, len);
+            return;
+        }
+        int i = 0;
+        for (int bound = FLOATS.loopBound(len); i < bound; i += FLOATS.length()) {
+            FloatVector depths = (FloatVector) IntVector.fromArray(INTS, page, off + i).convert(VectorOperators.I2F, 0);
+            depths.mul(0.01f).add(FloatVector.fromArray(FLOATS, height, idx + i)).intoArray(block, at + i); // separate multiply and add round like the scalar code
+        }
+        for (; i < len; i++)
+            block[at + i] = page[off + i]*0.01f + height[idx + i];
+    }
+
+    /***
+     * Finds the neighbour of a point with the lowest water surface from the block of its tile, if it is lower than the surface at the point. The point must not be on the edge.
+     * Searches in the same order as the scalar search, from the north neighbour with north-west only a fallback and the first of equal surfaces kept, so it chooses the same neighbour.
+     * @param block the surfaces of the tile of the point
+     * @param at the index of the point in the block
+     * @return the index in the neighbour order of FlowThread of the lowest neighbour, or -1 if no neighbour is strictly lower
+     */
+    public int lowest(float[] block, int at) {
+        float minValue = 1000000.0f;
+        int lowest = -1;
+        for (int n = 1; n < 8; n++) {
+            float surf = block[at + around[n]];
+            if (surf < minValue) {
+                minValue = surf;
+                lowest = n;
+            }
+        }
+        if (lowest < 0) {
+            lowest = 0;
+            minValue = block[at + around[0]];
+        }
+        return (minValue < block[at]) ? lowest : -1; // must be strictly lower
+    }
+}
@@ -0,0 +1,167 @@
+/***
+ * The part of the grid shown on the screen: which grid point is at the top-left corner of the panel and how many screen pixels each grid point covers.
+ * Converts between screen and grid coordinates, so that drawing and mouse clicks agree on where things are.
+ * @author Rea Keebine
+ * @version 1.0.0 Oct 18, 2026
+ */
+public class Viewport {
+
+    /***
+     * The most screen pixels a grid point may cover when zoomed in.
+     */
+    private static final double MAX_SCALE = 32;
+
+    /***
+     * Dimensions of the grid being viewed.
+     */
+    private int dimx, dimy;
+
+    /***
+     * The grid coordinates at the top-left corner of the panel.
+     */
+    private double originX, originY;
+
+    /***
+     * The number of screen pixels per grid point, less than one when zoomed out.
+     */
+    private double scale = 1;
+
+    /***
+     * Counts the changes to the view, so that layers drawn for an older view are redrawn.
+     */
+    private long version;
+
+    /***
+     * Creates a view of the whole grid at one screen pixel per grid point.
+     * @param dX x-dimension of the grid
+     * @param dY y-dimension of the grid
+     */
+    public Viewport(int dX, int dY) {
+        dimx = dX;
+        dimy = dY;
+    }
+
+    /***
+     * Gets the number of screen pixels per grid point.
+     * @return the scale, less than one when zoomed out
+     */
+    public double getScale() {
+        return scale;
+    }
+
+    /***
+     * Gets the grid x-coordinate at the left edge of the panel.
+     * @return the x-coordinate, which may be fractional or outside the grid
+     */
+    public double getOriginX() {
+        return originX;
+    }
+
+    /***
+     * Gets the grid y-coordinate at the top edge of the panel.
+     * @return the y-coordinate, which may be fractional or outside the grid
+     */
+    public double getOriginY() {
+        return originY;
+    }
+
+    /***
+     * Gets the number of the current view, which changes whenever the view is panned or zoomed.
+     * @return the view version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /***
+     * Gets the mipmap level to draw at the current zoom: the level at which one texel covers about one screen pixel.
+     * @param levels the number of levels available, level 0 being full resolution
+     * @return the level, between 0 and levels - 1
+     */
+    public int getLevel(int levels) {
+        if (scale >= 1)
+            return 0;
+        int level = 31 - Integer.numberOfLeadingZeros((int) (1 / scale)); // floor(log2(1/scale)), so a texel is never smaller than a pixel
+        return Math.min(level, levels - 1);
+    }
+
+    /***
+     * Converts a screen x-coordinate into a grid x-coordinate.
+     * @param sx x-coordinate in the panel
+     * @return the grid column under that pixel, which may be outside the grid
+     */
+    public int toGridX(int sx) {
+        return (int) Math.floor(originX + (sx + 0.5) / scale);
+    }
+
+    /***
+     * Converts a screen y-coordinate into a grid y-coordinate.
+     * @param sy y-coordinate in the panel
+     * @return the grid row under that pixel, which may be outside the grid
+     */
+    public int toGridY(int sy) {
+        return (int) Math.floor(originY + (sy + 0.5) / scale);
+    }
+
+    /***
+     * Checks whether a grid point is in the grid.
+     * @param x x-coordinate of point
+     * @param y y-coordinate of point
+     * @return true if the point is in the grid
+     */
+    public boolean inGrid(int x, int y) {
+        return x >= 0 && y >= 0 && x < dimx && y < dimy;
+    }
+
+    /***
+     * Works out the grid column under every pixel of a row of the panel, so that drawing needs no division per pixel.
+     * @param cols the array to fill, one entry per screen column; columns outside the grid are set to -1
+     */
+    public void gridColumns(int[] cols) {
+        for (int sx = 0; sx < cols.length; sx++) {
+            int gx = toGridX(sx);
+            cols[sx] = (gx >= 0 && gx < dimx) ? gx : -1;
+        }
+    }
+
+    /***
+     * Moves the view by a number of screen pixels, as when the grid is dragged.
+     * @param dx pixels dragged to the right
+     * @param dy pixels dragged down
+     */
+    public void pan(int dx, int dy) {
+        originX -= dx / scale;
+        originY -= dy / scale;
+        version++;
+    }
+
+    /***
+     * Zooms the view, keeping the grid point under a screen pixel in place.
+     * @param factor how much to magnify, more than one to zoom in
+     * @param sx x-coordinate in the panel to zoom around
+     * @param sy y-coordinate in the panel to zoom around
+     */
+    public void zoom(double factor, int sx, int sy) {
+        double minScale = 1.0 / Integer.highestOneBit(Math.max(1, Math.max(dimx, dimy))); // the whole grid in a single pixel
+        double newScale = Math.max(minScale, Math.min(MAX_SCALE, scale * factor));
+        double gx = originX + sx / scale, gy = originY + sy / scale;
+        originX = gx - sx / newScale;
+        originY = gy - sy / newScale;
+        scale = newScale;
+        version++;
+    }
+
+    /***
+     * Zooms and centres the view so the whole grid fits in the panel, at no more than one pixel per grid point.
+     * @param width width of the panel in pixels
+     * @param height height of the panel in pixels
+     */
+    public void fit(int width, int height) {
+        scale = Math.min(1.0, Math.min(width / (double) dimx, height / (double) dimy));
+        if (scale <= 0)
+            scale = 1;
+        originX = (dimx - width / scale) / 2;
+        originY = (dimy - height / scale) / 2;
+        version++;
+    }
+}
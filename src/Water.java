@@ -1,7 +1,10 @@
-import java.awt.image.*;
-import java.awt.Color;
-import java.awt.Graphics2D;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /***
  * A class containing a 2D array representing the water depths.
@@ -11,9 +14,71 @@ import java.util.ArrayList;
 public class Water {
 
     /***
-     * A regular grid of depth values.
+     * The base two logarithm of the number of points in a page of the depth grid, set with -Dflow.pageShift.
      */
-    private int [][] depth;
+    static final int PAGE_SHIFT = Integer.getInteger("flow.pageShift", 16);
+
+    /***
+     * Selects the position of a point within its page from its linear index.
+     */
+    static final int PAGE_MASK = (1 << PAGE_SHIFT) - 1;
+
+    /***
+     * The distance from the centre of a water source to the edges of its square, so a source covers 7x7 points.
+     */
+    static final int SOURCE_RADIUS = 3;
+
+    /***
+     * The depth of water a source adds to each point of its square.
+     */
+    static final int SOURCE_DEPTH = 3;
+
+    /***
+     * The grid of depth values, stored row by row so that the point (x,y) is at linear index y*dimx + x, and cut into pages of 1 << PAGE_SHIFT points.
+     * A page is only allocated once water reaches it, and a page that has dried up may be freed between timesteps, so the memory used follows the water rather than the area. A missing page is dry.
+     * Null when the depths are held outside the heap.
+     */
+    private int [][] pages;
+
+    /***
+     * Gives atomic access to single elements of the depth pages, so that concurrent transfers never lose or create water.
+     */
+    private static final VarHandle DEPTH = MethodHandles.arrayElementVarHandle(int[].class);
+
+    /***
+     * Gives atomic access to the slots of the page table, so that two threads reaching a missing page at once agree on the page allocated.
+     */
+    private static final VarHandle PAGES = MethodHandles.arrayElementVarHandle(int[][].class);
+
+    /***
+     * The depth grid when it is held outside the heap, in native memory with -Dflow.offHeap or in a mapped file, or null when it is in pages.
+     */
+    private OffHeapDepths offHeap;
+
+    /***
+     * The last timestep at which each page was seen holding water by evictDry.
+     */
+    private long[] lastWet;
+
+    /***
+     * The dry pages found by the last evictDry, reused so that eviction allocates nothing.
+     */
+    private int[] dryPages;
+
+    /***
+     * The most dry pages kept allocated, set with -Dflow.dryPages. Keeping a few saves allocating them again when water comes back.
+     */
+    private int maxDryPages = Integer.getInteger("flow.dryPages", 16);
+
+    /***
+     * The total amount of water added by sources since the last reset.
+     */
+    private long injected;
+
+    /***
+     * The total amount of water emptied at the edges since the last reset.
+     */
+    private LongAdder drained = new LongAdder();
 
     /***
      * Dimensions for the size of the area.
@@ -21,14 +86,130 @@ public class Water {
     private int dimx, dimy;
 
     /***
-     * A transparent image for displaying the area top-down with shades of blue representing the water.
+     * One bit per point, set when the depth of the point changes and cleared when a frame is taken. Null until trackChanges is called, so nothing is tracked without a display.
+     */
+    private volatile long[] dirty;
+
+    /***
+     * One bitmap per frame, with a bit set for every point whose depth changed since the frame was last filled in, so that filling it in again only copies those points.
+     */
+    private long[][] stale;
+
+    /***
+     * One bit per point, set once the point has given or taken water since the last reset or clearMoves. Null until trackMoves is called, so nothing is recorded unless steady states are being looked for.
+     * Only ever set during a run, so water that only moves among points already set, and no longer loses energy, has settled into a fixed pattern.
+     */
+    private long[] moved;
+
+    /***
+     * Three recycled frames: one being filled by the simulation, one waiting to be drawn and one being drawn.
      */
-    private BufferedImage img;
+    private FlowFrame[] frames;
 
     /***
-     * A permuted list of integers in range [0, dimx*dimy).
+     * The index of the frame waiting to be drawn, plus FRESH if it has not been picked up by the renderer yet.
      */
-    private ArrayList<Integer> permute;
+    private AtomicInteger frameState = new AtomicInteger(1);
+
+    /***
+     * Marks the waiting frame in frameState as not yet picked up.
+     */
+    private static final int FRESH = 4;
+
+    /***
+     * The index of the frame owned by the simulation.
+     */
+    private int backFrame = 0;
+
+    /***
+     * The index of the frame owned by the renderer.
+     */
+    private int frontFrame = 2;
+
+    /***
+     * The number of the last frame taken.
+     */
+    private long frameSeq;
+
+    /***
+     * Gives atomic access to the words of the dirty bitmap.
+     */
+    private static final VarHandle DIRTY = MethodHandles.arrayElementVarHandle(long[].class);
+
+    /***
+     * The default width and height of a tile, set with -Dflow.tileSize.
+     */
+    public static final int DEFAULT_TILE_SIZE = Integer.getInteger("flow.tileSize", 64);
+
+    /***
+     * Odd multipliers for the rounds of the tile shuffle.
+     */
+    private static final int[] MIX = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35};
+
+    /***
+     * The inverses of the multipliers modulo 2^32, for undoing the tile shuffle.
+     */
+    private static final int[] MIX_INVERSE = {inverse(MIX[0]), inverse(MIX[1]), inverse(MIX[2])};
+
+    /***
+     * The width and height of the square tiles the area is split into for parallel work, a power of two.
+     */
+    private int tileSize;
+
+    /***
+     * The base two logarithm of the tile size.
+     */
+    private int tileShift;
+
+    /***
+     * The number of bits of a position within a tile. Every tile has 1 << tileBits positions in the traversal order, including the positions of edge tiles that fall outside the area, which are never wet.
+     */
+    private int tileBits;
+
+    /***
+     * The number of tiles across and down the area.
+     */
+    private int tilesX, tilesY;
+
+    /***
+     * The linear index of the top-left point of each tile.
+     */
+    private int[] tileOrigin;
+
+    /***
+     * The width and height of each tile within the area, smaller than the tile size for the tiles on the right and bottom edges.
+     */
+    private int[] tileWidth, tileHeight;
+
+    /***
+     * The keys of the shuffle of each tile, one per round, derived from the seed.
+     */
+    private int[] tileKeys;
+
+    /***
+     * The seed every reset derives the traversal order from, set with -Dflow.seed, or null to pick a new random seed on every reset.
+     */
+    private Long fixedSeed = Long.getLong("flow.seed");
+
+    /***
+     * The seed of the current traversal order.
+     */
+    private long seed;
+
+    /***
+     * One bit per position in the traversal order, set while the point at that position holds water. Timesteps only visit these points, so dry land costs nothing.
+     */
+    private long[] wet;
+
+    /***
+     * Gives atomic access to the words of the wet bitmap.
+     */
+    private static final VarHandle WET = MethodHandles.arrayElementVarHandle(long[].class);
+
+    /***
+     * The random number generator used to pick seeds when none is fixed.
+     */
+    private Random rand = new Random();
 
     /***
      * Returns the total size of the area.
@@ -61,7 +242,45 @@ public class Water {
      * @return depth at coordinate (x,y)
      */
     public int getDepth(int x, int y) {
-        return depth[x][y];
+        return getDepth(index(x,y));
+    }
+
+    /***
+     * Gets the page of the depth grid holding a point, for code that reads many depths at once. The point is at idx & PAGE_MASK within the page.
+     * The depths must only be changed through the methods of this class.
+     * @param idx linear index of point
+     * @return the page, or null if the page is dry and not allocated, or the depths are off the heap
+     */
+    int[] pageOf(int idx) {
+        return (offHeap != null) ? null : pages[idx >>> PAGE_SHIFT];
+    }
+
+    /***
+     * Gets the page of the depth grid holding a point, allocating it if water is reaching it for the first time.
+     * @param idx linear index of point
+     * @return the page
+     */
+    private int[] page(int idx) {
+        int k = idx >>> PAGE_SHIFT;
+        int[] p = (int[]) PAGES.getAcquire(pages, k);
+        if (p == null) {
+            p = new int[Math.min(PAGE_MASK + 1, dim() - (k << PAGE_SHIFT))];
+            if (!PAGES.compareAndSet(pages, k, null, p))
+                p = (int[]) PAGES.getAcquire(pages, k); // another thread allocated it first
+        }
+        return p;
+    }
+
+    /***
+     * Returns the depth at a particular linear index in the area.
+     * @param idx linear index of point
+     * @return depth at the linear index
+     */
+    public int getDepth(int idx) {
+        if (offHeap != null)
+            return offHeap.get(idx);
+        int[] p = pages[idx >>> PAGE_SHIFT];
+        return (p == null) ? 0 : p[idx & PAGE_MASK];
     }
 
     /***
@@ -71,15 +290,351 @@ public class Water {
      * @param d new depth at coordinate (x,y) to set
      */
     public void setDepth(int x, int y, int d) {
-        depth[x][y] = d;
+        setDepth(index(x,y), d);
+    }
+
+    /***
+     * Sets the depth at a particular linear index in the area
+     * @param idx linear index of point
+     * @param d new depth at the linear index to set
+     */
+    public void setDepth(int idx, int d) {
+        if (offHeap != null)
+            offHeap.set(idx, d);
+        else {
+            int[] p = (d > 0) ? page(idx) : pageOf(idx);
+            if (p == null)
+                return; // already dry
+            p[idx & PAGE_MASK] = d;
+        }
+        markDirty(idx);
+        if (d > 0)
+            activate(idx);
+        else
+            deactivate(idx);
+    }
+
+    /***
+     * Adds a point to the wet points visited by the timesteps. Called after its depth has become positive.
+     * @param idx linear index of point
+     */
+    private void activate(int idx) {
+        int pos = position(idx);
+        long mask = 1L << pos; // only the low six bits of pos are used by the shift
+        WET.getAndBitwiseOr(wet, pos >>> 6, mask);
+    }
+
+    /***
+     * Removes a point from the wet points after its depth has dropped to zero.
+     * Water may arrive from a neighbour at the same time, and the neighbour only activates the point if it was dry when the water arrived, so the depth is checked again after the bit is cleared.
+     * @param idx linear index of point
+     */
+    private void deactivate(int idx) {
+        int pos = position(idx);
+        long mask = 1L << pos;
+        WET.getAndBitwiseAnd(wet, pos >>> 6, ~mask);
+        if (getDepthVolatile(idx) > 0)
+            activate(idx);
+    }
+
+    /***
+     * Reads the depth at a point with volatile semantics, so that water moved there by another thread is seen.
+     * @param idx linear index of point
+     * @return depth at the linear index
+     */
+    private int getDepthVolatile(int idx) {
+        if (offHeap != null)
+            return offHeap.getVolatile(idx);
+        int[] p = (int[]) PAGES.getAcquire(pages, idx >>> PAGE_SHIFT);
+        return (p == null) ? 0 : (int) DEPTH.getVolatile(p, idx & PAGE_MASK);
+    }
+
+    /***
+     * Records that the depth of a point changed, so that the next frame taken knows to redraw it.
+     * @param idx linear index of point
+     */
+    private void markDirty(int idx) {
+        long[] bits = dirty;
+        if (bits != null)
+            mark(bits, idx);
+    }
+
+    /***
+     * Atomically sets the bit of a point in a bitmap.
+     * @param bits the bitmap, one bit per point in row order
+     * @param idx linear index of point
+     */
+    private static void mark(long[] bits, int idx) {
+        long mask = 1L << idx; // only the low six bits of idx are used by the shift
+        int w = idx >>> 6;
+        if ((bits[w] & mask) == 0) // usually already set while water keeps moving here
+            DIRTY.getAndBitwiseOr(bits, w, mask);
+    }
+
+    /***
+     * Atomically moves one unit of water from one point to another. Nothing is moved if another thread has already emptied the source point.
+     * @param from linear index of the point losing water
+     * @param to linear index of the point gaining water
+     * @return true if the water was moved
+     */
+    public boolean transfer(int from, int to) {
+        int d;
+        if (offHeap != null) {
+            d = offHeap.takeUnit(from);
+            if (d == 0)
+                return false;
+            if (offHeap.add(to, 1) == 0)
+                activate(to);
+        } else {
+            int[] src = pages[from >>> PAGE_SHIFT];
+            if (src == null)
+                return false;
+            int off = from & PAGE_MASK;
+            do {
+                d = (int) DEPTH.getVolatile(src, off);
+                if (d <= 0)
+                    return false;
+            } while (!DEPTH.compareAndSet(src, off, d, d - 1));
+            if ((int) DEPTH.getAndAdd(page(to), to & PAGE_MASK, 1) == 0)
+                activate(to);
+        }
+        if (d == 1)
+            deactivate(from);
+        markDirty(from);
+        markDirty(to);
+        long[] m = moved;
+        if (m != null) {
+            mark(m, from);
+            mark(m, to);
+        }
+        return true;
+    }
+
+    /***
+     * Sets the depth of a point to its result in a synchronous timestep, in which its water went to its neighbours or off the edge and theirs arrived. Only the point itself is written and nothing about its neighbours is read, so points may be settled in parallel.
+     * @param idx linear index of point
+     * @param d the new depth
+     * @param lost the water emptied off the area at this point
+     */
+    void settle(int idx, int d, int lost) {
+        if (lost > 0)
+            drained.add(lost);
+        int old = getDepth(idx);
+        if (old == d)
+            return;
+        if (offHeap != null)
+            offHeap.set(idx, d);
+        else
+            ((d > 0) ? page(idx) : pageOf(idx))[idx & PAGE_MASK] = d;
+        markDirty(idx);
+        long[] m = moved;
+        if (m != null)
+            mark(m, idx);
+        if (old == 0)
+            activate(idx);
+        else if (d == 0)
+            deactivate(idx);
+    }
+
+    /***
+     * Atomically empties the water at a point, counting it as drained off the area.
+     * @param idx linear index of point
+     * @return the amount of water removed
+     */
+    public int drain(int idx) {
+        int d;
+        if (offHeap != null)
+            d = offHeap.empty(idx);
+        else {
+            int[] p = pages[idx >>> PAGE_SHIFT];
+            if (p == null)
+                return 0;
+            d = (int) DEPTH.getAndSet(p, idx & PAGE_MASK, 0);
+        }
+        if (d > 0) {
+            drained.add(d);
+            markDirty(idx);
+            deactivate(idx);
+        }
+        return d;
+    }
+
+    /***
+     * Sums the depths over the whole area.
+     * @return the total amount of water in the area
+     */
+    public synchronized long totalMass() {
+        if (offHeap != null)
+            return offHeap.sum();
+        long total = 0;
+        for (int[] p : pages)
+            if (p != null)
+                for (int d : p)
+                    total += d;
+        return total;
+    }
+
+    /***
+     * Gets the total amount of water emptied at the edges since the last reset.
+     * @return the amount of water drained
+     */
+    public long getDrained() {
+        return drained.sum();
+    }
+
+    /***
+     * Gets the total amount of water added by sources since the last reset.
+     * @return the amount of water injected
+     */
+    public synchronized long getInjected() {
+        return injected;
+    }
+
+    /***
+     * Copies the depth grid, for a checkpoint. Only consistent between timesteps.
+     * @param into the array to copy the depths into, in row order, at least dim() long
+     */
+    public synchronized void copyDepths(int[] into) {
+        copyDepths(into, 0, dim());
     }
 
     /***
-     * Gets the image of the area with the water points as shades of blue.
-     * @return image of area with water points
+     * Copies part of the depth grid into the same positions of an array.
+     * @param into the array to copy the depths into, in row order
+     * @param start the linear index of the first point to copy
+     * @param len the number of points to copy
      */
-    public BufferedImage getImage() {
-        return img;
+    private void copyDepths(int[] into, int start, int len) {
+        if (offHeap != null) {
+            offHeap.copy(into, start, len);
+            return;
+        }
+        while (len > 0) {
+            int[] p = pages[start >>> PAGE_SHIFT];
+            int off = start & PAGE_MASK, n = Math.min(len, PAGE_MASK + 1 - off);
+            if (p != null)
+                System.arraycopy(p, off, into, start, n);
+            else
+                java.util.Arrays.fill(into, start, start + n, 0);
+            start += n;
+            len -= n;
+        }
+    }
+
+    /***
+     * Gets the number of pages of the depth grid that are allocated.
+     * @return the number of pages in memory
+     */
+    public synchronized int getResidentPages() {
+        int n = 0;
+        for (int k = 0; k < getPageCount(); k++)
+            if ((offHeap != null) ? offHeap.isResident(k) : pages[k] != null)
+                n++;
+        return n;
+    }
+
+    /***
+     * Gets the number of pages the depth grid is cut into.
+     * @return the number of pages covering the area
+     */
+    public int getPageCount() {
+        return lastWet.length;
+    }
+
+    /***
+     * Frees pages that have dried up, keeping the most recently wet of them up to -Dflow.dryPages. Must be called between timesteps.
+     * A page is dry when none of its points holds water; finding that reads the page, so this is meant to be called every so many timesteps rather than after each one.
+     * @param step the current timestep, to tell which dry pages were wet most recently
+     * @return the number of pages freed
+     */
+    public synchronized int evictDry(long step) {
+        int dry = 0;
+        if (offHeap != null && offHeap.isMapped())
+            return 0; // the operating system drops the parts of the file not in use
+        for (int k = 0; k < getPageCount(); k++) {
+            if ((offHeap != null) ? !offHeap.isResident(k) : pages[k] == null)
+                continue;
+            if ((offHeap != null) ? offHeap.holdsWater(k) : holdsWater(pages[k]))
+                lastWet[k] = step;
+            else
+                dryPages[dry++] = k;
+        }
+        int evict = dry - maxDryPages;
+        if (evict <= 0)
+            return 0;
+        // least recently wet first: a small insertion sort, as there are few pages
+        for (int i = 1; i < dry; i++) {
+            int k = dryPages[i], j = i - 1;
+            for (; j >= 0 && lastWet[dryPages[j]] > lastWet[k]; j--)
+                dryPages[j + 1] = dryPages[j];
+            dryPages[j + 1] = k;
+        }
+        for (int i = 0; i < evict; i++)
+            if (offHeap != null)
+                offHeap.free(dryPages[i]);
+            else
+                pages[dryPages[i]] = null;
+        return evict;
+    }
+
+    /***
+     * Checks whether any point of a page holds water.
+     * @param p the page
+     * @return true if some depth is positive
+     */
+    private static boolean holdsWater(int[] p) {
+        for (int i = 0; i < p.length; i += 1024) { // in blocks, so the inner loop can be vectorised and a wet page is found early
+            int any = 0;
+            for (int j = i, end = Math.min(i + 1024, p.length); j < end; j++)
+                any |= p[j];
+            if (any != 0)
+                return true;
+        }
+        return false;
+    }
+
+    /***
+     * Restores the Water object to a checkpoint: the depths, the traversal order and the mass counters. Timesteps run afterwards give the same depths as if the run had never stopped.
+     * The seed only applies to this restore, so a later reset chooses its seed as before.
+     * @param depths the depths in row order
+     * @param orderSeed the seed the traversal order was derived from
+     * @param added the total amount of water added by sources
+     * @param lost the total amount of water emptied at the edges
+     */
+    public synchronized void restore(int[] depths, long orderSeed, long added, long lost) {
+        if (depths.length != dim())
+            throw new IllegalArgumentException("expected " + dim() + " depths but got " + depths.length);
+        reset();
+        seed = orderSeed;
+        deriveKeys();
+        for (int idx = 0; idx < dim(); idx++)
+            if (depths[idx] > 0) {
+                if (offHeap != null)
+                    offHeap.set(idx, depths[idx]);
+                else
+                    page(idx)[idx & PAGE_MASK] = depths[idx];
+                activate(idx);
+            }
+        injected = added;
+        drained.add(lost);
+    }
+
+    /***
+     * Checks that the water in the area equals everything added by sources minus everything drained at the edges. Only meaningful between timesteps.
+     * @return the difference between the actual and expected total, zero if mass is conserved
+     */
+    public synchronized long massError() {
+        return totalMass() - (injected - drained.sum());
+    }
+
+    /***
+     * Converts a 2D location into its linear index. The neighbours of a linear index are at offsets of +/-1 along x and +/-dimx along y.
+     * @param x x-coordinate of point
+     * @param y y-coordinate of point
+     * @return linear index of the point (x,y)
+     */
+    public int index(int x, int y) {
+        return y*dimx + x;
     }
 
     /***
@@ -88,31 +643,289 @@ public class Water {
      * @param dY y-dimension for new Water object
      */
     public Water(int dX, int dY) {
+        this(dX, dY, DEFAULT_TILE_SIZE);
+    }
+
+    /***
+     * Creates the Water object using given dimensions and tile size. Runs the reset method.
+     * @param dX x-dimension for new Water object
+     * @param dY y-dimension for new Water object
+     * @param tile width and height of the tiles the area is split into for parallel work, rounded up to a power of two of at least 2
+     */
+    public Water(int dX, int dY, int tile) {
+        this(dX, dY, tile, Boolean.getBoolean("flow.offHeap") ? new OffHeapDepths(dX*dY, PAGE_SHIFT) : null);
+    }
+
+    /***
+     * Creates the Water object with its depths in a memory-mapped file, which other processes can read while the simulation runs. Anything already in the file is replaced.
+     * The file holds the magic bytes WATR, dimx and dimy as little-endian ints, then the depths as little-endian ints in row order (y*dimx + x).
+     * @param dX x-dimension for new Water object
+     * @param dY y-dimension for new Water object
+     * @param tile width and height of the tiles the area is split into for parallel work
+     * @param file the file to keep the depths in
+     * @throws IOException if the file cannot be created or mapped
+     */
+    public Water(int dX, int dY, int tile, Path file) throws IOException {
+        this(dX, dY, tile, new OffHeapDepths(dX, dY, PAGE_SHIFT, file));
+    }
+
+    /***
+     * Creates the Water object with the given storage for its depths, which is the only depth grid it allocates.
+     * @param dX x-dimension for new Water object
+     * @param dY y-dimension for new Water object
+     * @param tile width and height of the tiles the area is split into for parallel work
+     * @param depths the empty depth grid outside the heap, or null to keep the depths in pages on the heap
+     */
+    private Water(int dX, int dY, int tile, OffHeapDepths depths) {
         dimx = dX;
         dimy = dY;
-        depth = new int[dimx][dimy];
+        tileShift = 32 - Integer.numberOfLeadingZeros(Math.max(2, tile) - 1);
+        tileSize = 1 << tileShift;
+        tileBits = 2*tileShift;
+        tilesX = (dimx + tileSize - 1) / tileSize;
+        tilesY = (dimy + tileSize - 1) / tileSize;
+        tileKeys = new int[MIX.length*tilesX*tilesY];
+        tileOrigin = new int[tilesX*tilesY];
+        tileWidth = new int[tilesX*tilesY];
+        tileHeight = new int[tilesX*tilesY];
+        for (int t = 0; t < tilesX*tilesY; t++) {
+            int x = (t % tilesX) << tileShift, y = (t / tilesX) << tileShift;
+            tileOrigin[t] = index(x, y);
+            tileWidth[t] = Math.min(tileSize, dimx - x);
+            tileHeight[t] = Math.min(tileSize, dimy - y);
+        }
+        wet = new long[(int) ((((long) tilesX*tilesY << tileBits) + 63) / 64)];
+        int pageCount = (int) (((long) dimx*dimy + PAGE_MASK) >>> PAGE_SHIFT);
+        offHeap = depths;
+        if (offHeap == null)
+            pages = new int[pageCount][];
+        lastWet = new long[pageCount];
+        dryPages = new int[pageCount];
+        resetState(); // the depths start empty, so they need no clearing
+    }
+
+    /***
+     * Checks whether the depths are held outside the heap, in native memory or in a mapped file.
+     * @return true if the depths are off the heap
+     */
+    public boolean isOffHeap() {
+        return offHeap != null;
+    }
+
+    /***
+     * Gets the width and height of the tiles.
+     * @return the tile size
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /***
+     * Gets the number of tiles the area is split into.
+     * @return the number of tiles
+     */
+    public int getTileCount() {
+        return tilesX*tilesY;
+    }
+
+    /***
+     * Gets the number of tiles across the area. Tile t is at column t % getTilesX() and row t / getTilesX().
+     * @return the number of tile columns
+     */
+    public int getTilesX() {
+        return tilesX;
+    }
+
+    /***
+     * Gets the linear index of the top-left point of a tile.
+     * @param t the tile number
+     * @return the linear index of the tile origin
+     */
+    public int getTileOrigin(int t) {
+        return tileOrigin[t];
+    }
+
+    /***
+     * Gets the width of a tile within the area.
+     * @param t the tile number
+     * @return the number of columns of the tile, less than the tile size on the right edge
+     */
+    public int getTileWidth(int t) {
+        return tileWidth[t];
+    }
+
+    /***
+     * Gets the height of a tile within the area.
+     * @param t the tile number
+     * @return the number of rows of the tile, less than the tile size on the bottom edge
+     */
+    public int getTileHeight(int t) {
+        return tileHeight[t];
+    }
+
+    /***
+     * Gets the position in the traversal order of the first point of a tile.
+     * @param t the tile number
+     * @return the start of the tile in the traversal order, inclusive
+     */
+    public int getTileStart(int t) {
+        return t << tileBits;
+    }
+
+    /***
+     * Gets the position in the traversal order after the last point of a tile.
+     * @param t the tile number
+     * @return the end of the tile in the traversal order, exclusive
+     */
+    public int getTileEnd(int t) {
+        return (t+1) << tileBits;
+    }
+
+    /***
+     * Gets the seed the current traversal order was derived from.
+     * @return the seed
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    /***
+     * Fixes the seed of the traversal order, so that runs with the same seed visit the points in the same order, and resets the Water object to use it.
+     * @param s the seed
+     */
+    public synchronized void setSeed(long s) {
+        fixedSeed = s;
         reset();
     }
 
+    /***
+     * Finds the next position in the permutation whose point holds water. Points that become wet at a later position while a tile is being worked on are found too, just as they would be by visiting every point.
+     * Skips 64 dry positions per word of the bitmap, so a dry tile costs a few dozen reads.
+     * @param pos the first position to look at
+     * @param end the position to stop at, usually the end of a tile
+     * @return the first wet position in [pos, end), or end if there is none
+     */
+    public int nextWet(int pos, int end) {
+        while (pos < end) {
+            int w = pos >>> 6;
+            long bits = (long) WET.getVolatile(wet, w) & (-1L << pos); // ignore the positions before pos
+            if (bits != 0)
+                return Math.min((w << 6) + Long.numberOfTrailingZeros(bits), end);
+            pos = (w + 1) << 6;
+        }
+        return end;
+    }
+
     /***
      * Resets the Water object by setting all the depths in the grid to zero.
      */
-    public void reset(){
-        for (int x = 0; x < dimx; x++)
-            for (int y = 0; y < dimy; y++)
-                depth[x][y] = 0;
-        deriveImage();
+    public synchronized void reset(){
+        if (offHeap != null)
+            offHeap.clear();
+        else
+            java.util.Arrays.fill(pages, null); // every page is dry again, so all are freed
+        resetState();
+    }
+
+    /***
+     * Resets everything that follows the depths, once they are all zero: the totals, the wet points, the changes and the traversal order.
+     */
+    private void resetState() {
+        injected = 0;
+        drained.reset();
+        java.util.Arrays.fill(wet, 0L);
+        long[] bits = dirty;
+        if (bits != null) { // every point may have changed
+            java.util.Arrays.fill(bits, -1L);
+            if (dim() % 64 != 0)
+                bits[bits.length - 1] = (1L << (dim() % 64)) - 1;
+        }
+        if (moved != null)
+            java.util.Arrays.fill(moved, 0L);
         genPermute();
     }
 
     /***
-     * Generates a permuted list of linear index positions to allow a random traversal over the area.
+     * Chooses the seed of the traversal order and derives the shuffle of every tile from it. The points of each tile are kept together in the order and only shuffled among themselves.
+     * Nothing is stored per point, as positions and points are converted into each other by a keyed bijection.
      */
     private void genPermute() {
-        permute = new ArrayList<Integer>();
-        for(int idx = 0; idx < dim(); idx++)
-            permute.add(idx);
-        java.util.Collections.shuffle(permute);
+        seed = (fixedSeed != null) ? fixedSeed : rand.nextLong();
+        deriveKeys();
+    }
+
+    /***
+     * Derives the shuffle of every tile from the current seed.
+     */
+    private void deriveKeys() {
+        for (int k = 0; k < tileKeys.length; k++)
+            tileKeys[k] = (int) splitMix(seed + (k + 1)*0x9E3779B97F4A7C15L);
+    }
+
+    /***
+     * Scrambles a 64-bit value, used to derive independent keys for the tiles from one seed.
+     * @param z the value to scramble
+     * @return the scrambled value
+     */
+    private static long splitMix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /***
+     * Finds the inverse of an odd number modulo 2^32 by Newton's iteration.
+     * @param m an odd number
+     * @return the number i with m*i == 1 modulo 2^32
+     */
+    private static int inverse(int m) {
+        int i = m; // correct to 3 bits, each step doubles that
+        for (int n = 0; n < 4; n++)
+            i *= 2 - m*i;
+        return i;
+    }
+
+    /***
+     * Shuffles the positions within a tile: a bijection on [0, 1 << tileBits) made of keyed rounds of an add, an odd multiply and an xor-shift, each of which can be undone.
+     * @param p the position within the tile
+     * @param t the tile number
+     * @return the point within the tile, as (y << tileShift) | x relative to the top-left corner of the tile
+     */
+    private int shuffle(int p, int t) {
+        int mask = (1 << tileBits) - 1;
+        for (int r = 0, k = MIX.length*t; r < MIX.length; r++, k++) {
+            p = ((p + tileKeys[k])*MIX[r]) & mask;
+            p ^= p >>> tileShift; // tileShift is half of tileBits, so this undoes itself
+        }
+        return p;
+    }
+
+    /***
+     * Undoes shuffle.
+     * @param p the point within the tile, as (y << tileShift) | x relative to the top-left corner of the tile
+     * @param t the tile number
+     * @return the position within the tile
+     */
+    private int unshuffle(int p, int t) {
+        int mask = (1 << tileBits) - 1;
+        for (int r = MIX.length - 1, k = MIX.length*t + r; r >= 0; r--, k--) {
+            p ^= p >>> tileShift;
+            p = (p*MIX_INVERSE[r] - tileKeys[k]) & mask;
+        }
+        return p;
+    }
+
+    /***
+     * Finds the position of a point in the traversal order.
+     * @param idx linear index of point
+     * @return the position of the point
+     */
+    private int position(int idx) {
+        int y = idx / dimx;
+        int x = idx - y*dimx;
+        int t = (y >>> tileShift)*tilesX + (x >>> tileShift);
+        int local = ((y & (tileSize - 1)) << tileShift) | (x & (tileSize - 1));
+        return (t << tileBits) | unshuffle(local, t);
     }
 
     /***
@@ -122,69 +935,130 @@ public class Water {
      */
     private int[] locate(int pos) {
         int [] ind = new int[2];
-        ind[0] = (int) pos / dimy; // x
-        ind[1] = pos % dimy; // y
+        ind[0] = pos % dimx; // x
+        ind[1] = pos / dimx; // y
         return ind;
     }
 
     /***
-     * Finds a permuted 2D location from a linear index in the range [0, dimx*dimy)
-     * @param i linear index
-     * @return 2D location in the area
+     * Finds the 2D location at a position in the traversal order.
+     * @param i position in the range [0, getTileEnd(getTileCount()-1))
+     * @return 2D location in the area, or null if the position falls outside the area
      */
     public int[] getPermute(int i) {
-        return locate(permute.get(i));
+        int idx = getPermuteIndex(i);
+        return (idx < 0) ? null : locate(idx);
+    }
+
+    /***
+     * Finds the linear index at a position in the traversal order.
+     * @param i position in the range [0, getTileEnd(getTileCount()-1))
+     * @return linear index in the area, or -1 if the position falls outside the area in an edge tile
+     */
+    public int getPermuteIndex(int i) {
+        int t = i >>> tileBits;
+        int local = shuffle(i & ((1 << tileBits) - 1), t);
+        int x = local & (tileSize - 1);
+        int y = local >>> tileShift;
+        return (x < tileWidth[t] && y < tileHeight[t]) ? tileOrigin[t] + y*dimx + x : -1;
+    }
+
+    /***
+     * Starts recording which points change and taking frames for display. Called once by the GUI before the simulation starts.
+     */
+    public synchronized void trackChanges() {
+        if (frames != null)
+            return;
+        frames = new FlowFrame[]{new FlowFrame(dim()), new FlowFrame(dim()), new FlowFrame(dim())};
+        stale = new long[frames.length][(int) ((dim() + 63L) / 64)];
+        for (long[] bits : stale)
+            java.util.Arrays.fill(bits, -1L); // the water may already be wet, so every frame is filled in fully the first time
+        dirty = new long[(int) ((dim() + 63L) / 64)];
+    }
+
+    /***
+     * Starts recording which points move water, for finding when the water has settled. Must be called between timesteps.
+     */
+    public synchronized void trackMoves() {
+        if (moved == null)
+            moved = new long[(int) ((dim() + 63L) / 64)];
+    }
+
+    /***
+     * Forgets which points have moved water, so that water poured again along the same paths counts as new movement. Must be called between timesteps.
+     */
+    public synchronized void clearMoves() {
+        if (moved != null)
+            java.util.Arrays.fill(moved, 0L);
     }
 
     /***
-     * Converts depth values in the water grid to shades of blue [extension to assignment], or transparent if the depth is zero, and populates an image.
+     * Works out the potential energy of the water on a terrain: for each wet point, its depth times the height of the ground plus the energy of the column of water itself, in the same units as the water surface.
+     * Water flowing to a surface lower by more than one unit of depth always loses energy, while water sloshing between surfaces closer than that gains or loses less than one unit, so the energy only keeps falling while the water is still settling.
+     * The points are summed in the traversal order, so the same depths always give exactly the same energy. Only consistent between timesteps.
+     * @param land the terrain the water is on
+     * @return the potential energy
      */
-    public void deriveImage() {
-        img = new BufferedImage(dimy, dimx, BufferedImage.TYPE_INT_ARGB);
-        float aveD = 0.0f;
-        int maxD = -1000, minD = 1000, count = 0, totD = 0;
+    public synchronized double getEnergy(Terrain land) {
+        double energy = 0;
+        int end = getTileEnd(getTileCount() - 1);
+        for (int i = nextWet(0, end); i < end; i = nextWet(i + 1, end)) {
+            int idx = getPermuteIndex(i);
+            int d = getDepth(idx);
+            energy += d*(double) land.getHeight(idx) + 0.005*d*d;
+        }
+        return energy;
+    }
+
+    /***
+     * Counts the points that have given or taken water since the last reset or clearMoves. Only consistent between timesteps.
+     * @return the number of points that moved water, or 0 unless trackMoves has been called
+     */
+    public synchronized long getMovedCount() {
+        long n = 0;
+        if (moved != null)
+            for (long bits : moved)
+                n += Long.bitCount(bits);
+        return n;
+    }
 
-        // determine range of depths (where the min>0 - so that the initial dot is a normal blue)
-        for(int x=0; x < dimx; x++)
-            for(int y=0; y < dimy; y++) {
-                int d = depth[x][y];
-                if(d > maxD)
-                    maxD = d;
-                if(d > 0 && d < minD) // min>0
-                    minD = d;
-                if(d>0) {
-                    count++;
-                    totD = totD + d;
-                }
+    /***
+     * Takes a frame of the current depths for the renderer, replacing any frame it has not picked up yet. Must be called between timesteps. Does nothing unless trackChanges has been called.
+     * Only the blocks of 64 points with a depth that changed since the frame was last filled in are copied, so taking a frame costs time proportional to the changes rather than the area.
+     * @param step the timestep count to label the frame with
+     */
+    public synchronized void publishFrame(long step) {
+        if (frames == null)
+            return;
+        FlowFrame frame = frames[backFrame];
+        int[] depth = frame.getDepth();
+        long[] changed = frame.getChanged(), own = stale[backFrame];
+        long[] other1 = stale[(backFrame + 1) % 3], other2 = stale[(backFrame + 2) % 3];
+        for (int w = 0; w < changed.length; w++) {
+            long bits = (dirty[w] == 0) ? 0 : (long) DIRTY.getAndSet(dirty, w, 0L); // move the changes since the last frame into this one
+            changed[w] = bits;
+            if ((bits | own[w]) != 0) {
+                copyDepths(depth, w << 6, Math.min(64, dim() - (w << 6)));
+                own[w] = 0;
+            }
+            if (bits != 0) { // the other frames are now behind at these points
+                other1[w] |= bits;
+                other2[w] |= bits;
             }
+        }
+        frame.label(step, frameSeq + 1, frameSeq);
+        frameSeq++;
+        backFrame = frameState.getAndSet(backFrame | FRESH) & 3; // swap with the waiting frame
+    }
 
-        if (count>0)
-            aveD = totD/count; // find the average depth, depths > aveD will be made darker, depths < aveD will be made lighter
-
-        for(int x=0; x < dimx; x++)
-            for(int y=0; y < dimy; y++)
-                if (depth[x][y] > 0) {
-                    int d = depth[x][y];
-                    float colSat, colBri;
-                    if ((maxD - minD) == 0) { // if the range is 0 make the dot a regular blue
-                        colSat = 1.0f;
-                        colBri = 1.0f;
-                    } else if (aveD > 0 && d < aveD) {
-                        colSat = 1.0f - ((aveD-d) / (aveD-0) * 0.75f); // make lighter, a value of 0 is white so min is 0.25
-                        colBri = 1.0f;
-                    } else if (aveD > 0 && d > aveD) {
-                        colSat = 1.0f;
-                        colBri = 1.0f - ((d-aveD) / (maxD-aveD) * 0.75f); // make darker, a value of 0 is black so min is 0.25
-                    } else { // if d == aveD make the dot a regular blue
-                        colSat = 1.0f;
-                        colBri = 1.0f;
-                    }
-                    Color col = new Color(Color.HSBtoRGB(2/3f,colSat,colBri)); // convert the HSB (easier to manipulate shades) to RGB
-                    img.setRGB(x, y, col.getRGB());
-                } else {
-                    Color col = new Color(0.0f, 0.0f, 0.0f, 0.0f); // make the dot transparent
-                    img.setRGB(x, y, col.getRGB());
-                }
+    /***
+     * Picks up the newest frame for drawing, or keeps the one already held if no newer frame has been taken. Only one renderer may pick up frames.
+     * @return the frame to draw
+     */
+    FlowFrame acquireFrame() {
+        if ((frameState.get() & FRESH) != 0)
+            frontFrame = frameState.getAndSet(frontFrame) & 3; // swap with the waiting frame
+        return frames[frontFrame];
     }
 
     /***
@@ -192,11 +1066,29 @@ public class Water {
      * @param x x-coordinate of centre of cube face for new water
      * @param y y-coordinate of centre of cube face for new water
      */
-    public void makeSource(int x, int y) {
-        for (int i = x-3; i < x+4; i++)
-            for (int j = y-3; j < y+4; j++)
-                if (i>=0 && j>=0 && i<=dimx-1 && j<=dimy-1)
-                    depth[i][j] = depth[i][j] + 3;
-        deriveImage();
+    public synchronized void makeSource(int x, int y) {
+        for (int j = y-SOURCE_RADIUS; j <= y+SOURCE_RADIUS; j++)
+            addWater(j, x-SOURCE_RADIUS, x+SOURCE_RADIUS+1, SOURCE_DEPTH);
+    }
+
+    /***
+     * Adds the same depth of water to every point of a run along a row, leaving out points outside the area.
+     * Sources merged by SourceQueue are added a run at a time, so each point is written once.
+     * @param y the row
+     * @param from x-coordinate of the first point of the run
+     * @param to x-coordinate just past the last point of the run
+     * @param amount the depth of water to add to each point
+     */
+    synchronized void addWater(int y, int from, int to, int amount) {
+        if (y < 0 || y >= dimy)
+            return;
+        for (int i = Math.max(from, 0); i < Math.min(to, dimx); i++) {
+            int idx = index(i, y);
+            int old = (offHeap != null) ? offHeap.add(idx, amount) : (int) DEPTH.getAndAdd(page(idx), idx & PAGE_MASK, amount);
+            if (old == 0) // atomic, as the workers may be moving water here
+                activate(idx);
+            injected += amount;
+            markDirty(idx);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,251 @@
+import java.awt.Color;
+
+/***
+ * The water as shades of blue, kept as a pyramid of downsampled levels for drawing any part of it at any zoom in time proportional to the pixels drawn.
+ * Each level above full resolution holds, per block of points, the total depth and the number of wet points. Both are kept up to date from the points that changed in each frame, so taking in a frame costs time proportional to the changes, not the grid.
+ * Blocks are drawn in the colour of the average depth of their wet points, and more transparent the less of the block is wet, so thin rivers stay visible when zoomed out.
+ * @author Rea Keebine
+ * @version 1.0.0 Oct 18, 2026
+ */
+public class WaterLayer {
+
+    /***
+     * The least opacity of a block with any water in it, as a fraction.
+     */
+    private static final float MIN_COVER = 0.4f;
+
+    /***
+     * An object which contains depths of the water across the terrain.
+     */
+    private Water rivers;
+
+    /***
+     * Dimensions of the grid.
+     */
+    private int dimx, dimy;
+
+    /***
+     * The depths in the frame last taken in, in row order. Level 0 is drawn from these.
+     */
+    private int[] depth;
+
+    /***
+     * The total depth of each block of each level, in row order. Level 0 is null.
+     */
+    private int[][] sums;
+
+    /***
+     * The number of wet points in each block of each level, in row order. Level 0 is null.
+     */
+    private int[][] counts;
+
+    /***
+     * The width of each level in blocks.
+     */
+    private int[] widths;
+
+    /***
+     * The number of points at each depth, to follow the depth range without looking at every point.
+     */
+    private int[] histogram;
+
+    /***
+     * The largest depth with any points.
+     */
+    private int maxD;
+
+    /***
+     * The total depth and the number of wet points over the whole grid.
+     */
+    private long totalDepth, wetCount;
+
+    /***
+     * The number of the frame last taken in, or -1 if none has been.
+     */
+    private long syncedSeq = -1;
+
+    /***
+     * The colour of each depth for the current depth range.
+     */
+    private int[] colours;
+
+    /***
+     * The average depth the colour table was built for.
+     */
+    private float colourAve;
+
+    /***
+     * Whether the colour table was built for water that all has the same depth.
+     */
+    private boolean colourUniform;
+
+    /***
+     * Creates the layer for a Water object and starts it taking frames.
+     * @param water an object which contains depths of the water across the terrain
+     */
+    public WaterLayer(Water water) {
+        rivers = water;
+        rivers.trackChanges();
+        dimx = water.getDimX();
+        dimy = water.getDimY();
+        depth = new int[dimx*dimy];
+        int count = TerrainLayer.levelCount(dimx, dimy);
+        sums = new int[count][];
+        counts = new int[count][];
+        widths = new int[count];
+        widths[0] = dimx;
+        for (int l = 1; l < count; l++) {
+            widths[l] = (dimx + (1 << l) - 1) >> l;
+            int size = widths[l] * ((dimy + (1 << l) - 1) >> l);
+            sums[l] = new int[size];
+            counts[l] = new int[size];
+        }
+        histogram = new int[16];
+        histogram[0] = dimx*dimy;
+    }
+
+    /***
+     * Takes in the newest frame of the water, if there is one, and brings the levels and colours up to date.
+     * Only the points that changed are visited, unless frames were missed since the last one taken in, in which case every point is compared.
+     * @return true if a new frame was taken in
+     */
+    public boolean update() {
+        FlowFrame frame = rivers.acquireFrame();
+        if (frame.getSeq() == syncedSeq)
+            return false;
+        int[] d = frame.getDepth();
+        if (frame.getBaseSeq() == syncedSeq) {
+            long[] changed = frame.getChanged();
+            for (int w = 0; w < changed.length; w++)
+                for (long bits = changed[w]; bits != 0; bits &= bits - 1) {
+                    int idx = (w << 6) + Long.numberOfTrailingZeros(bits);
+                    change(idx, d[idx]);
+                }
+        } else {
+            for (int idx = 0; idx < d.length; idx++)
+                if (d[idx] != depth[idx])
+                    change(idx, d[idx]);
+        }
+        syncedSeq = frame.getSeq();
+        while (maxD > 0 && histogram[maxD] == 0)
+            maxD--;
+        updateColours();
+        return true;
+    }
+
+    /***
+     * Records the new depth of a point in every level.
+     * @param idx linear index of point
+     * @param d the new depth
+     */
+    private void change(int idx, int d) {
+        int old = depth[idx];
+        if (old == d)
+            return;
+        depth[idx] = d;
+        if (d >= histogram.length)
+            histogram = java.util.Arrays.copyOf(histogram, Math.max(d + 1, 2*histogram.length));
+        histogram[old]--;
+        histogram[d]++;
+        maxD = Math.max(maxD, d);
+        totalDepth += d - old;
+        int wetChange = (d > 0 ? 1 : 0) - (old > 0 ? 1 : 0);
+        wetCount += wetChange;
+        int x = idx % dimx, y = idx / dimx;
+        for (int l = 1; l < sums.length; l++) {
+            int b = (y >> l)*widths[l] + (x >> l);
+            sums[l][b] += d - old;
+            counts[l][b] += wetChange;
+        }
+    }
+
+    /***
+     * Rebuilds the colour table if the depth range changed.
+     */
+    private void updateColours() {
+        int minD = 1000;
+        for (int v = 1; v <= maxD; v++)
+            if (histogram[v] > 0) {
+                minD = v;
+                break;
+            }
+        float aveD = (wetCount > 0) ? totalDepth / wetCount : 0.0f; // whole units, so the colours only change when the average moves by a unit
+        if (colours == null || colours.length != maxD + 1 || colourAve != aveD || colourUniform != (maxD == minD)) {
+            colours = colourTable(maxD, minD, aveD);
+            colourAve = aveD;
+            colourUniform = maxD == minD;
+        }
+    }
+
+    /***
+     * Builds the packed ARGB colour of every depth from zero to the maximum for the current depth range.
+     * @param maxD the largest depth
+     * @param minD the smallest depth above zero
+     * @param aveD the average depth of the points with water
+     * @return the colour of each depth, transparent for zero
+     */
+    private static int[] colourTable(int maxD, int minD, float aveD) {
+        int[] table = new int[maxD + 1];
+        table[0] = new Color(0.0f, 0.0f, 0.0f, 0.0f).getRGB(); // make the dot transparent
+        for (int d = 1; d <= maxD; d++) {
+            float colSat, colBri;
+            if ((maxD - minD) == 0) { // if the range is 0 make the dot a regular blue
+                colSat = 1.0f;
+                colBri = 1.0f;
+            } else if (aveD > 0 && d < aveD) {
+                colSat = 1.0f - ((aveD-d) / (aveD-0) * 0.75f); // make lighter, a value of 0 is white so min is 0.25
+                colBri = 1.0f;
+            } else if (aveD > 0 && d > aveD) {
+                colSat = 1.0f;
+                colBri = 1.0f - ((d-aveD) / (maxD-aveD) * 0.75f); // make darker, a value of 0 is black so min is 0.25
+            } else { // if d == aveD make the dot a regular blue
+                colSat = 1.0f;
+                colBri = 1.0f;
+            }
+            table[d] = Color.HSBtoRGB(2/3f,colSat,colBri); // convert the HSB (easier to manipulate shades) to RGB
+        }
+        return table;
+    }
+
+    /***
+     * Draws the part of the water in view into a screen-sized image, from the level that matches the zoom. Dry points and pixels outside the grid are transparent.
+     * @param view the part of the grid shown
+     * @param pixels the packed ARGB pixels of the image, in row order
+     * @param width the width of the image
+     * @param height the height of the image
+     * @param cols scratch space of at least width entries
+     */
+    public void draw(Viewport view, int[] pixels, int width, int height, int[] cols) {
+        int level = view.getLevel(sums.length);
+        view.gridColumns(cols);
+        int area = 1 << (2*level);
+        for (int sy = 0, row = 0; sy < height; sy++, row += width) {
+            int gy = view.toGridY(sy);
+            if (gy < 0 || gy >= dimy) {
+                java.util.Arrays.fill(pixels, row, row + width, 0);
+                continue;
+            }
+            if (level == 0) {
+                for (int sx = 0, base = gy*dimx; sx < width; sx++) {
+                    int gx = cols[sx];
+                    pixels[row + sx] = (gx < 0) ? 0 : colours[depth[base + gx]];
+                }
+                continue;
+            }
+            int[] sum = sums[level], count = counts[level];
+            int blockRow = (gy >> level)*widths[level];
+            for (int sx = 0; sx < width; sx++) {
+                int gx = cols[sx];
+                int wet = (gx < 0) ? 0 : count[blockRow + (gx >> level)];
+                if (wet == 0) {
+                    pixels[row + sx] = 0;
+                    continue;
+                }
+                int b = blockRow + (gx >> level);
+                int colour = colours[Math.min(sum[b] / wet, maxD)];
+                int alpha = (int) (255 * Math.max(MIN_COVER, wet / (float) area));
+                pixels[row + sx] = (alpha << 24) | (colour & 0xFFFFFF);
+            }
+        }
+    }
+}